@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.frameratetile;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Stores or clears the refresh rate profile of one package, see AppProfileService.
+ */
+public class AppProfileReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "AppProfileReceiver";
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        final String packageName = intent.getStringExtra(Constants.EXTRA_PACKAGE);
+        final int fps = intent.getIntExtra(Constants.EXTRA_FPS, 0);
+        if (packageName == null) {
+            return;
+        }
+        if (fps != 0 && fps != 60 && fps != 90 && fps != 120) {
+            Log.w(TAG, "Unsupported refresh rate " + fps);
+            return;
+        }
+
+        final SharedPreferences.Editor editor =
+                AppProfileService.getProfilePreferences(context).edit();
+        if (fps == 0) {
+            editor.remove(packageName);
+        } else {
+            editor.putInt(packageName, fps);
+        }
+        editor.apply();
+        AppProfileService.start(context);
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.frameratetile;
+
+import android.app.ActivityManager;
+import android.app.ActivityTaskManager;
+import android.app.Service;
+import android.app.TaskStackListener;
+import android.app.WindowConfiguration;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-application refresh rate profiles. Follows the foreground task through
+ * TaskStackListener callbacks and pins the rate of packages that have a profile;
+ * everything else runs on the global policy picked in the tile.
+ *
+ * Profiles live in device protected storage and are mirrored in memory, so a task
+ * switch costs one map lookup. Set them with:
+ *   adb shell am broadcast -a org.lineageos.frameratetile.SET_PROFILE \
+ *       --es package <package> --ei fps <60|90|120, 0 to clear>
+ *
+ * Dump with: adb shell dumpsys activity service org.lineageos.frameratetile
+ */
+public class AppProfileService extends Service {
+
+    private static final String TAG = "AppProfileService";
+    private static final boolean DEBUG = false;
+
+    private static volatile int sPinnedFps;
+
+    private Handler mHandler;
+
+    // Handler thread only
+    private final ArrayMap<String, Integer> mProfiles = new ArrayMap<>();
+    private String mForegroundPackage;
+    private long mCallbacks;
+    private long mCallbackCpuNs;
+    private long mSwitches;
+    private long mLastApplyMs;
+    private long mMaxApplyMs;
+
+    private final TaskStackListener mTaskStackListener = new TaskStackListener() {
+        @Override
+        public void onTaskMovedToFront(ActivityManager.RunningTaskInfo taskInfo) {
+            final String packageName = getPackageName(taskInfo);
+            if (packageName != null) {
+                final long eventMs = SystemClock.uptimeMillis();
+                mHandler.post(() -> onForegroundChanged(packageName, eventMs));
+            }
+        }
+
+        @Override
+        public void onTaskCreated(int taskId, ComponentName componentName) {
+            if (componentName != null) {
+                final String packageName = componentName.getPackageName();
+                final long eventMs = SystemClock.uptimeMillis();
+                mHandler.post(() -> onForegroundChanged(packageName, eventMs));
+            }
+        }
+    };
+
+    static void start(Context context) {
+        context.startServiceAsUser(new Intent(context, AppProfileService.class),
+                UserHandle.SYSTEM);
+    }
+
+    /**
+     * The rate pinned by the foreground application's profile, or 0 if there is none.
+     */
+    static int getPinnedFps() {
+        return sPinnedFps;
+    }
+
+    static SharedPreferences getProfilePreferences(Context context) {
+        return context.createDeviceProtectedStorageContext().getSharedPreferences(
+                Constants.FRAME_RATE_PROFILES, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = BackgroundThread.getHandler();
+        try {
+            ActivityTaskManager.getService().registerTaskStackListener(mTaskStackListener);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to register task stack listener", e);
+        }
+        // The listener only reports later switches; start from the task in front now
+        mHandler.post(this::queryForegroundPackage);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Started again whenever a profile changes
+        final Map<String, ?> stored = getProfilePreferences(this).getAll();
+        mHandler.post(() -> {
+            mProfiles.clear();
+            for (Map.Entry<String, ?> entry : stored.entrySet()) {
+                if (entry.getValue() instanceof Integer) {
+                    mProfiles.put(entry.getKey(), (Integer) entry.getValue());
+                }
+            }
+            if (mProfiles.isEmpty()) {
+                unpin();
+                stopSelf();
+                return;
+            }
+            if (mForegroundPackage != null) {
+                apply(mForegroundPackage, SystemClock.uptimeMillis());
+            }
+        });
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        try {
+            ActivityTaskManager.getService().unregisterTaskStackListener(mTaskStackListener);
+        } catch (RemoteException e) {
+            // Ignore
+        }
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private static String getPackageName(ActivityManager.RunningTaskInfo taskInfo) {
+        final ComponentName component = taskInfo.topActivity != null
+                ? taskInfo.topActivity : taskInfo.baseActivity;
+        return component != null ? component.getPackageName() : null;
+    }
+
+    private void queryForegroundPackage() {
+        final List<ActivityManager.RunningTaskInfo> tasks;
+        try {
+            // Skip picture-in-picture, which stays on top of the task actually in front
+            tasks = ActivityTaskManager.getService().getFilteredTasks(1,
+                    WindowConfiguration.ACTIVITY_TYPE_UNDEFINED,
+                    WindowConfiguration.WINDOWING_MODE_PINNED);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to query the foreground task", e);
+            return;
+        }
+        if (mForegroundPackage != null) {
+            // A task switch got here first
+            return;
+        }
+        if (tasks == null || tasks.isEmpty()) {
+            return;
+        }
+        final String packageName = getPackageName(tasks.get(0));
+        if (packageName != null) {
+            mForegroundPackage = packageName;
+            apply(packageName, SystemClock.uptimeMillis());
+        }
+    }
+
+    private void onForegroundChanged(String packageName, long eventMs) {
+        final long startCpuNs = Debug.threadCpuTimeNanos();
+        mCallbacks++;
+        if (!packageName.equals(mForegroundPackage)) {
+            mForegroundPackage = packageName;
+            apply(packageName, eventMs);
+        }
+        mCallbackCpuNs += Debug.threadCpuTimeNanos() - startCpuNs;
+    }
+
+    private void apply(String packageName, long eventMs) {
+        final Integer fps = mProfiles.get(packageName);
+        if (fps == null) {
+            unpin();
+            return;
+        }
+        if (fps == sPinnedFps) {
+            return;
+        }
+        if (DEBUG) Log.d(TAG, packageName + " pinned at " + fps + " fps");
+        sPinnedFps = fps;
+        mSwitches++;
+        RefreshRateTransition.getInstance(this).start(fps, (reached, confirmed) -> {
+            final long applyMs = SystemClock.uptimeMillis() - eventMs;
+            mHandler.post(() -> {
+                mLastApplyMs = applyMs;
+                mMaxApplyMs = Math.max(mMaxApplyMs, applyMs);
+            });
+        });
+    }
+
+    private void unpin() {
+        if (sPinnedFps == 0) {
+            return;
+        }
+        sPinnedFps = 0;
+        mSwitches++;
+        // Back to the global policy
+        final SharedPreferences sharedPreferences =
+                createDeviceProtectedStorageContext().getSharedPreferences(
+                        Constants.FRAME_RATE_TILE, Context.MODE_PRIVATE);
+        if (sharedPreferences.getBoolean(Constants.GOVERNOR, false)) {
+            FrameRateGovernorService.start(this);
+        } else {
+            RefreshRateTransition.getInstance(this).start(
+                    sharedPreferences.getInt(Constants.LAST_FPS, 60), null);
+        }
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mHandler.runWithScissors(() -> {
+            pw.println("App refresh rate profiles:");
+            for (int i = 0; i < mProfiles.size(); i++) {
+                pw.println("  " + mProfiles.keyAt(i) + "=" + mProfiles.valueAt(i));
+            }
+            pw.println("  foreground=" + mForegroundPackage + " pinned=" + sPinnedFps);
+            pw.println("  callbacks=" + mCallbacks + " cpu="
+                    + (mCallbackCpuNs / 1000) + "us"
+                    + " avg=" + (mCallbacks > 0 ? mCallbackCpuNs / mCallbacks / 1000 : 0) + "us");
+            pw.println("  switches=" + mSwitches + " last apply=" + mLastApplyMs
+                    + "ms max apply=" + mMaxApplyMs + "ms");
+        }, 1000);
+    }
+}
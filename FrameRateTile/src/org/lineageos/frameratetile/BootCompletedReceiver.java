@@ -19,29 +19,38 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.SystemProperties;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.os.BackgroundThread;
 
 public class BootCompletedReceiver extends BroadcastReceiver {
 
+    private static final String TAG = "FrameRateTile";
+
     @Override
     public void onReceive(Context context, Intent intent) {
-        SharedPreferences sharedPreferences =
-                context.createDeviceProtectedStorageContext().getSharedPreferences(
-                        Constants.FRAME_RATE_TILE,
-                        Context.MODE_PRIVATE);
-        int lastFps = sharedPreferences.getInt(Constants.LAST_FPS, 60);
-        if (lastFps == 120) {
-            // Edge case because default fps is 60 but you can't jump
-            // from 60 to 120 so go to 90 first and then to 120
-            SystemProperties.set(Constants.VENDOR_FPS, Integer.toString(90));
-            // Wait a little bit until setting the prop the second time
-            try {
-                Thread.sleep(500);
-            } catch (InterruptedException ignored) {
+        final PendingResult result = goAsync();
+        final long startMs = SystemClock.elapsedRealtime();
+        BackgroundThread.getHandler().post(() -> {
+            SharedPreferences sharedPreferences =
+                    context.createDeviceProtectedStorageContext().getSharedPreferences(
+                            Constants.FRAME_RATE_TILE,
+                            Context.MODE_PRIVATE);
+            if (!AppProfileService.getProfilePreferences(context).getAll().isEmpty()) {
+                AppProfileService.start(context);
+            }
+            if (sharedPreferences.getBoolean(Constants.GOVERNOR, false)) {
+                FrameRateGovernorService.start(context);
+                result.finish();
+                return;
             }
-            SystemProperties.set(Constants.VENDOR_FPS, String.valueOf(lastFps));
-        } else {
-            SystemProperties.set(Constants.VENDOR_FPS, String.valueOf(lastFps));
-        }
+            int lastFps = sharedPreferences.getInt(Constants.LAST_FPS, 60);
+            RefreshRateTransition.getInstance(context).start(lastFps, (fps, confirmed) -> {
+                Log.i(TAG, "Restored " + fps + " fps in "
+                        + (SystemClock.elapsedRealtime() - startMs) + "ms");
+                result.finish();
+            });
+        });
     }
 }
@@ -18,5 +18,12 @@ package org.lineageos.frameratetile;
 public class Constants {
     static final String FRAME_RATE_TILE = "FrameRateTilePreferences";
     static final String LAST_FPS = "lastFps";
+    // Whether LAST_FPS is a fixed rate or the peak of the adaptive governor
+    static final String GOVERNOR = "governor";
     static final String VENDOR_FPS = "vendor.asus.dfps";
+
+    // Per-application profiles: package name -> fps
+    static final String FRAME_RATE_PROFILES = "FrameRateProfiles";
+    static final String EXTRA_PACKAGE = "package";
+    static final String EXTRA_FPS = "fps";
 }
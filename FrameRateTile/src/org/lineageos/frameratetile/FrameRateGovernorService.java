@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.frameratetile;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.input.InputManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+import android.util.SparseLongArray;
+import android.view.Display;
+import android.view.InputChannel;
+import android.view.InputEvent;
+import android.view.InputEventReceiver;
+import android.view.InputMonitor;
+import android.view.MotionEvent;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Adaptive refresh rate governor. Runs the panel at the peak rate while the user is
+ * touching the screen and drops to the idle rate once no touch was seen for the idle
+ * timeout. Any two transitions are at least MIN_DWELL_MS apart so it can't flap.
+ *
+ * Dump with: adb shell dumpsys activity service org.lineageos.frameratetile
+ */
+public class FrameRateGovernorService extends Service {
+
+    private static final String TAG = "FrameRateGovernor";
+    private static final boolean DEBUG = false;
+
+    private static final long MIN_DWELL_MS = 1000;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private InputMonitor mInputMonitor;
+    private TouchReceiver mTouchReceiver;
+
+    private int mPeakFps;
+    private int mIdleFps;
+    private long mIdleTimeoutMs;
+
+    // Governor thread only
+    private int mTargetFps;
+    private int mCurrentFps;
+    private long mCurrentSinceMs;
+    private long mLastTransitionMs;
+    private long mLastTouchMs;
+    private boolean mIdleCheckPending;
+    private final SparseLongArray mTimeAtRateMs = new SparseLongArray();
+    private long mTransitions;
+    private long mTouchEvents;
+
+    private final Runnable mIdleCheck = this::checkIdle;
+    private final Runnable mRaise = () -> moveTo(mPeakFps);
+
+    static void start(Context context) {
+        context.startServiceAsUser(new Intent(context, FrameRateGovernorService.class),
+                UserHandle.SYSTEM);
+    }
+
+    static void stop(Context context) {
+        context.stopServiceAsUser(new Intent(context, FrameRateGovernorService.class),
+                UserHandle.SYSTEM);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mIdleFps = getResources().getInteger(R.integer.config_governorIdleFps);
+        mIdleTimeoutMs = getResources().getInteger(R.integer.config_governorIdleTimeoutMs);
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        mInputMonitor = InputManager.getInstance().monitorGestureInput(TAG,
+                Display.DEFAULT_DISPLAY);
+        mTouchReceiver = new TouchReceiver(mInputMonitor.getInputChannel(),
+                mThread.getLooper());
+
+        mHandler.post(() -> {
+            mCurrentSinceMs = SystemClock.elapsedRealtime();
+            mLastTouchMs = SystemClock.uptimeMillis();
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Started again whenever the tile picks another peak
+        final int peakFps = createDeviceProtectedStorageContext().getSharedPreferences(
+                Constants.FRAME_RATE_TILE, Context.MODE_PRIVATE)
+                .getInt(Constants.LAST_FPS, 120);
+        mHandler.post(() -> {
+            mPeakFps = peakFps;
+            mHandler.removeCallbacks(mRaise);
+            // Re-apply even if the target is unchanged, an app profile may have moved the panel
+            mTargetFps = 0;
+            mLastTouchMs = SystemClock.uptimeMillis();
+            moveTo(mPeakFps);
+            scheduleIdleCheck(mIdleTimeoutMs);
+        });
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mTouchReceiver.dispose();
+        mInputMonitor.dispose();
+        mThread.quitSafely();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private void onTouch() {
+        mTouchEvents++;
+        mLastTouchMs = SystemClock.uptimeMillis();
+        if (mTargetFps != mPeakFps && !mHandler.hasCallbacks(mRaise)) {
+            moveTo(mPeakFps);
+        }
+        if (!mIdleCheckPending) {
+            scheduleIdleCheck(mIdleTimeoutMs);
+        }
+    }
+
+    private void checkIdle() {
+        mIdleCheckPending = false;
+        final long idleMs = SystemClock.uptimeMillis() - mLastTouchMs;
+        if (idleMs < mIdleTimeoutMs) {
+            scheduleIdleCheck(mIdleTimeoutMs - idleMs);
+            return;
+        }
+        moveTo(mIdleFps);
+    }
+
+    private void scheduleIdleCheck(long delayMs) {
+        mHandler.removeCallbacks(mIdleCheck);
+        mIdleCheckPending = true;
+        mHandler.postDelayed(mIdleCheck, delayMs);
+    }
+
+    private void moveTo(int fps) {
+        if (fps == mTargetFps || AppProfileService.getPinnedFps() != 0) {
+            return;
+        }
+        final long sinceLastMs = SystemClock.uptimeMillis() - mLastTransitionMs;
+        if (sinceLastMs < MIN_DWELL_MS) {
+            // Hysteresis: try again once the current rate has been held long enough
+            if (fps == mPeakFps) {
+                mHandler.postDelayed(mRaise, MIN_DWELL_MS - sinceLastMs);
+            } else {
+                scheduleIdleCheck(MIN_DWELL_MS - sinceLastMs);
+            }
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Moving to " + fps + " fps");
+        mTargetFps = fps;
+        mLastTransitionMs = SystemClock.uptimeMillis();
+        mTransitions++;
+        RefreshRateTransition.getInstance(this).start(fps,
+                (reached, confirmed) -> mHandler.post(() -> onRateReached(reached)));
+    }
+
+    private void onRateReached(int fps) {
+        if (fps != mTargetFps) {
+            // Superseded by a later transition
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        accountTimeAtRate(now);
+        mCurrentFps = fps;
+        mCurrentSinceMs = now;
+    }
+
+    private void accountTimeAtRate(long now) {
+        if (mCurrentFps != 0) {
+            mTimeAtRateMs.put(mCurrentFps,
+                    mTimeAtRateMs.get(mCurrentFps) + now - mCurrentSinceMs);
+        }
+        mCurrentSinceMs = now;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mHandler.runWithScissors(() -> {
+            accountTimeAtRate(SystemClock.elapsedRealtime());
+            pw.println("Frame rate governor:");
+            pw.println("  peak=" + mPeakFps + " idle=" + mIdleFps
+                    + " idle timeout=" + mIdleTimeoutMs + "ms");
+            pw.println("  current=" + mCurrentFps + " target=" + mTargetFps);
+            pw.println("  transitions=" + mTransitions + " touch events=" + mTouchEvents);
+            for (int i = 0; i < mTimeAtRateMs.size(); i++) {
+                pw.println("  time at " + mTimeAtRateMs.keyAt(i) + " fps="
+                        + mTimeAtRateMs.valueAt(i) + "ms");
+            }
+        }, 1000);
+    }
+
+    private final class TouchReceiver extends InputEventReceiver {
+        TouchReceiver(InputChannel channel, Looper looper) {
+            super(channel, looper);
+        }
+
+        @Override
+        public void onInputEvent(InputEvent event) {
+            try {
+                if (event instanceof MotionEvent) {
+                    onTouch();
+                }
+            } finally {
+                finishInputEvent(event, false);
+            }
+        }
+    }
+}
@@ -18,10 +18,13 @@ package org.lineageos.frameratetile;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.graphics.drawable.Icon;
-import android.os.SystemProperties;
 import android.service.quicksettings.Tile;
 import android.service.quicksettings.TileService;
 
+/**
+ * Cycles the refresh rate policy: fixed 60, 90 and 120 Hz, then adaptive with a 90
+ * and a 120 Hz peak, see FrameRateGovernorService.
+ */
 public class FrameRateTile extends TileService {
 
     @Override
@@ -32,22 +35,8 @@ public class FrameRateTile extends TileService {
                 createDeviceProtectedStorageContext().getSharedPreferences(
                         Constants.FRAME_RATE_TILE,
                         Context.MODE_PRIVATE);
-        Icon icon;
-        switch (sharedPreferences.getInt(Constants.LAST_FPS, 60)) {
-            case 90:
-                icon = Icon.createWithResource(this, R.drawable.ic_frame_rate_mode_90);
-                break;
-            case 120:
-                icon = Icon.createWithResource(this, R.drawable.ic_frame_rate_mode_120);
-                break;
-            default:
-                icon = Icon.createWithResource(this, R.drawable.ic_frame_rate_mode_60);
-                break;
-        }
-
-        getQsTile().setIcon(icon);
-        getQsTile().setState(Tile.STATE_ACTIVE);
-        getQsTile().updateTile();
+        updateTile(sharedPreferences.getInt(Constants.LAST_FPS, 60),
+                sharedPreferences.getBoolean(Constants.GOVERNOR, false));
     }
 
     @Override
@@ -57,25 +46,57 @@ public class FrameRateTile extends TileService {
                 createDeviceProtectedStorageContext().getSharedPreferences(
                         Constants.FRAME_RATE_TILE,
                         Context.MODE_PRIVATE);
+        final boolean governor = sharedPreferences.getBoolean(Constants.GOVERNOR, false);
         int newFps;
-        Icon icon;
+        boolean newGovernor = governor;
         switch (sharedPreferences.getInt(Constants.LAST_FPS, 60)) {
             case 90:
                 newFps = 120;
-                icon = Icon.createWithResource(this, R.drawable.ic_frame_rate_mode_120);
                 break;
             case 120:
-                newFps = 60;
-                icon = Icon.createWithResource(this, R.drawable.ic_frame_rate_mode_60);
+                // Fixed 120 -> adaptive 90, adaptive 120 -> fixed 60
+                newFps = governor ? 60 : 90;
+                newGovernor = !governor;
                 break;
             default:
                 newFps = 90;
+                break;
+        }
+        sharedPreferences.edit()
+                .putInt(Constants.LAST_FPS, newFps)
+                .putBoolean(Constants.GOVERNOR, newGovernor)
+                .apply();
+        if (newGovernor) {
+            // Picks up the new peak
+            FrameRateGovernorService.start(this);
+        } else {
+            if (governor) {
+                FrameRateGovernorService.stop(this);
+            }
+            if (AppProfileService.getPinnedFps() == 0) {
+                RefreshRateTransition.getInstance(this).start(newFps, null);
+            }
+        }
+        updateTile(newFps, newGovernor);
+    }
+
+    private void updateTile(int fps, boolean governor) {
+        Icon icon;
+        switch (fps) {
+            case 90:
                 icon = Icon.createWithResource(this, R.drawable.ic_frame_rate_mode_90);
                 break;
+            case 120:
+                icon = Icon.createWithResource(this, R.drawable.ic_frame_rate_mode_120);
+                break;
+            default:
+                icon = Icon.createWithResource(this, R.drawable.ic_frame_rate_mode_60);
+                break;
         }
-        sharedPreferences.edit().putInt(Constants.LAST_FPS, newFps).apply();
-        SystemProperties.set(Constants.VENDOR_FPS, Integer.toString(newFps));
+
         getQsTile().setIcon(icon);
+        getQsTile().setSubtitle(governor ? getString(R.string.frame_rate_adaptive) : null);
+        getQsTile().setState(Tile.STATE_ACTIVE);
         getQsTile().updateTile();
     }
 }
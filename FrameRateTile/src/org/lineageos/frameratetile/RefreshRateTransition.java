@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lineageos.frameratetile;
+
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+import android.view.Display;
+
+import com.android.internal.os.BackgroundThread;
+
+/**
+ * Moves the panel to a refresh rate through the modes it allows, one step at a time.
+ * The panel can't go from 60 straight to 120, so that transition goes through 90.
+ * Each step is taken as soon as DisplayManager reports the previous mode change;
+ * a step that is never confirmed is given up on after STEP_TIMEOUT_MS and the next
+ * one is taken anyway, so a transition always ends.
+ *
+ * One instance per process; all state lives on the background thread.
+ */
+class RefreshRateTransition implements DisplayManager.DisplayListener {
+
+    private static final String TAG = "RefreshRateTransition";
+    private static final boolean DEBUG = false;
+
+    private static final long STEP_TIMEOUT_MS = 1000;
+    // Assumed when the current rate can't be told; stepping up from it is always safe
+    private static final int SLOWEST_FPS = 60;
+
+    interface Callback {
+        /** The transition ended; confirmed is false if any step timed out. */
+        void onTransitionComplete(int fps, boolean confirmed);
+    }
+
+    private static RefreshRateTransition sInstance;
+
+    private final DisplayManager mDisplayManager;
+    private final Handler mHandler;
+
+    private int mTargetFps;
+    private int mStepFps;
+    private boolean mConfirmed;
+    private long mStartMs;
+    private Callback mCallback;
+
+    private final Runnable mStepTimeout = this::onStepTimeout;
+
+    static synchronized RefreshRateTransition getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RefreshRateTransition(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private RefreshRateTransition(Context context) {
+        mDisplayManager = context.getSystemService(DisplayManager.class);
+        mHandler = BackgroundThread.getHandler();
+    }
+
+    /**
+     * Starts moving to fps, replacing any transition in progress. The callback, if any,
+     * is called on the background thread.
+     */
+    void start(int fps, Callback callback) {
+        mHandler.post(() -> begin(fps, callback));
+    }
+
+    /**
+     * The next rate on the way from one supported rate to another: 60 <-> 90 <-> 120,
+     * and 120 -> 60 directly.
+     */
+    static int getNextStep(int fromFps, int toFps) {
+        if (fromFps == 60 && toFps == 120) {
+            return 90;
+        }
+        return toFps;
+    }
+
+    private void begin(int fps, Callback callback) {
+        if (mCallback != null) {
+            // Superseded; the caller of the old transition still gets its answer
+            mCallback.onTransitionComplete(mTargetFps, false);
+        }
+        if (mStepFps == 0) {
+            mDisplayManager.registerDisplayListener(this, mHandler);
+        }
+        mTargetFps = fps;
+        mCallback = callback;
+        mConfirmed = true;
+        mStartMs = SystemClock.elapsedRealtime();
+        step(getStartFps());
+    }
+
+    /**
+     * The rate the first step is taken from: the active display mode, else the rate last
+     * requested from the panel, else the slowest one, so no step is ever skipped.
+     */
+    private int getStartFps() {
+        final int fps = getCurrentFps();
+        if (isPanelRate(fps)) {
+            return fps;
+        }
+        final int requestedFps = SystemProperties.getInt(Constants.VENDOR_FPS, 0);
+        final int startFps = isPanelRate(requestedFps) ? requestedFps : SLOWEST_FPS;
+        Log.w(TAG, "Unknown current rate " + fps + " fps, starting from " + startFps);
+        return startFps;
+    }
+
+    private static boolean isPanelRate(int fps) {
+        return fps == 60 || fps == 90 || fps == 120;
+    }
+
+    private void step(int fromFps) {
+        mHandler.removeCallbacks(mStepTimeout);
+        if (fromFps == mTargetFps) {
+            complete();
+            return;
+        }
+        mStepFps = getNextStep(fromFps, mTargetFps);
+        if (DEBUG) Log.d(TAG, "Stepping " + fromFps + " -> " + mStepFps);
+        SystemProperties.set(Constants.VENDOR_FPS, Integer.toString(mStepFps));
+        if (getCurrentFps() == mStepFps) {
+            // Already applied synchronously
+            step(mStepFps);
+            return;
+        }
+        mHandler.postDelayed(mStepTimeout, STEP_TIMEOUT_MS);
+    }
+
+    private void onStepTimeout() {
+        Log.w(TAG, "No confirmation for " + mStepFps + " fps, continuing");
+        mConfirmed = false;
+        step(mStepFps);
+    }
+
+    private void complete() {
+        final String fps = Integer.toString(mTargetFps);
+        if (!fps.equals(SystemProperties.get(Constants.VENDOR_FPS))) {
+            // Already at the rate, but the property may still name another one
+            SystemProperties.set(Constants.VENDOR_FPS, fps);
+        }
+        mDisplayManager.unregisterDisplayListener(this);
+        mStepFps = 0;
+        Log.i(TAG, "Reached " + mTargetFps + " fps in "
+                + (SystemClock.elapsedRealtime() - mStartMs) + "ms"
+                + (mConfirmed ? "" : " (unconfirmed)"));
+        final Callback callback = mCallback;
+        mCallback = null;
+        if (callback != null) {
+            callback.onTransitionComplete(mTargetFps, mConfirmed);
+        }
+    }
+
+    /**
+     * The refresh rate of the active display mode, or 0 if there is no display yet.
+     */
+    private int getCurrentFps() {
+        final Display display = mDisplayManager.getDisplay(Display.DEFAULT_DISPLAY);
+        return display != null ? Math.round(display.getMode().getRefreshRate()) : 0;
+    }
+
+    @Override
+    public void onDisplayChanged(int displayId) {
+        if (displayId != Display.DEFAULT_DISPLAY || mStepFps == 0) {
+            return;
+        }
+        if (getCurrentFps() == mStepFps) {
+            step(mStepFps);
+        }
+    }
+
+    @Override
+    public void onDisplayAdded(int displayId) {
+    }
+
+    @Override
+    public void onDisplayRemoved(int displayId) {
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Minimal JMH-style harness: warms an operation up, then times it over several
+ * measurement rounds and reports the best round's time per operation together with
+ * the bytes allocated per operation by the measuring thread.
+ *
+ * The platform build has no JMH, so this keeps to what a plain JVM offers; allocation
+ * is read from com.sun.management.ThreadMXBean, available on HotSpot and OpenJDK.
+ */
+final class BenchmarkRunner {
+
+    interface Op {
+        /** One operation; the result is consumed so the JIT can't drop the work. */
+        int run(int iteration);
+    }
+
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURE_ROUNDS = 10;
+    private static final int OPS_PER_ROUND = 1 << 20;
+
+    private static final com.sun.management.ThreadMXBean sThreadBean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static volatile int sSink;
+
+    private BenchmarkRunner() {
+    }
+
+    static void run(String name, Op op) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            round(op);
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        long bestNs = Long.MAX_VALUE;
+        long allocatedBytes = 0;
+        for (int i = 0; i < MEASURE_ROUNDS; i++) {
+            final long startBytes = sThreadBean.getThreadAllocatedBytes(threadId);
+            final long elapsedNs = round(op);
+            allocatedBytes += sThreadBean.getThreadAllocatedBytes(threadId) - startBytes;
+            bestNs = Math.min(bestNs, elapsedNs);
+        }
+
+        System.out.printf("%-40s %8.2f ns/op %8.3f B/op%n", name,
+                (double) bestNs / OPS_PER_ROUND,
+                (double) allocatedBytes / ((long) MEASURE_ROUNDS * OPS_PER_ROUND));
+    }
+
+    private static long round(Op op) {
+        int sink = 0;
+        final long startNs = System.nanoTime();
+        for (int i = 0; i < OPS_PER_ROUND; i++) {
+            sink += op.run(i);
+        }
+        final long elapsedNs = System.nanoTime() - startNs;
+        sSink += sink;
+        return elapsedNs;
+    }
+}
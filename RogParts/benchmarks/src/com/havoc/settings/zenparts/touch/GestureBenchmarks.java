@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+/**
+ * Per-event cost and allocation of the gesture hot path on a plain JVM: scan code
+ * classification, the mapping lookup, the action table dispatch of TouchKeyHandler
+ * and GestureEngine.onKeyEvent as a whole, for the scan codes it handles and for the
+ * ones it passes through. Anything above 0 B/op is a regression.
+ */
+public final class GestureBenchmarks {
+
+    // Keyboard scan codes, never gestures; the last two are past MAX_SCAN_CODE
+    private static final int[] sUnhandled = new int[] { 2, 16, 30, 57, 114, 115, 200, 528 };
+
+    // Ops index these with the iteration so the JIT can't hoist the lookup out of the loop
+    private static final int MASK = 7;
+    private static final int[] sHandled = Constants.sSupportedKeycodes;
+    private static final int[] sMixed = new int[2 * (MASK + 1)];
+    private static final int MIXED_MASK = sMixed.length - 1;
+
+    static {
+        for (int i = 0; i <= MASK; i++) {
+            // Interleaved with a stride so neither kind lines up with a branch pattern
+            sMixed[(3 * i) & MIXED_MASK] = sHandled[i];
+            sMixed[(3 * i + 8) & MIXED_MASK] = sUnhandled[i];
+        }
+    }
+
+    private static final class NullSink implements GestureEngine.ActionSink {
+        int dispatched;
+
+        @Override
+        public boolean isGestureQueued() {
+            return false;
+        }
+
+        @Override
+        public void dispatch(int action, int scanCode, long eventTimeNs, long entryNs,
+                long recordId) {
+            dispatched++;
+        }
+
+        @Override
+        public void dispatchAfterProximityCheck(int action, int scanCode, long eventTimeNs,
+                long entryNs, long recordId) {
+            dispatched++;
+        }
+
+        @Override
+        public void onGestureDown(int action) {
+        }
+
+        @Override
+        public void onGestureAbandoned() {
+        }
+    }
+
+    private GestureBenchmarks() {
+    }
+
+    // Every gesture mapped, so a handled scan code always resolves to an action
+    private static int[] allActions() {
+        final int[] actions = new int[sHandled.length];
+        for (int i = 0; i < actions.length; i++) {
+            actions[i] = Constants.ACTION_BACK + i;
+        }
+        return actions;
+    }
+
+    private static GestureEngine newEngine(int proximityVerdict) {
+        final GestureEngine engine = new GestureEngine(System::nanoTime,
+                () -> proximityVerdict, () -> true, new NullSink(),
+                new GestureFlightRecorder());
+        engine.setMapping(sHandled, allActions());
+        return engine;
+    }
+
+    public static void main(String[] args) {
+        BenchmarkRunner.run("classify/handled", i ->
+                Constants.getScanCodeFlags(sHandled[i & MASK]));
+        BenchmarkRunner.run("classify/unhandled", i ->
+                Constants.getScanCodeFlags(sUnhandled[i & MASK]));
+        BenchmarkRunner.run("classify/mixed", i ->
+                Constants.getScanCodeFlags(sMixed[i & MIXED_MASK]));
+
+        final GestureMapping mapping = new GestureMapping(sHandled, allActions(), 1);
+        BenchmarkRunner.run("mapping/handled", i -> mapping.getAction(sHandled[i & MASK]));
+        BenchmarkRunner.run("mapping/unhandled", i ->
+                mapping.getAction(sUnhandled[i & MASK]));
+        BenchmarkRunner.run("mapping/mixed", i -> mapping.getAction(sMixed[i & MIXED_MASK]));
+
+        // Same shape as TouchKeyHandler: one prebuilt Runnable per action, no switch
+        final int[] ran = new int[1];
+        final Runnable[] actions = new Runnable[Constants.ACTION_FM_RADIO + 1];
+        for (int action = Constants.ACTION_BACK; action < actions.length; action++) {
+            actions[action] = () -> ran[0]++;
+        }
+        final int macro = GestureMacro.pack(Constants.ACTION_WAKE_UP,
+                Constants.ACTION_FLASHLIGHT);
+        BenchmarkRunner.run("table/dispatch action", i -> {
+            final int action = Constants.ACTION_BACK + (i & 15);
+            if (GestureMacro.isRunnable(action, actions)) {
+                actions[action].run();
+            }
+            return ran[0];
+        });
+        BenchmarkRunner.run("table/dispatch macro", i -> {
+            if (GestureMacro.isRunnable(macro, actions)) {
+                final int steps = GestureMacro.getStepCount(macro);
+                for (int step = 0; step < steps; step++) {
+                    actions[GestureMacro.getStep(macro, step)].run();
+                }
+            }
+            return ran[0];
+        });
+
+        final GestureEngine engine = newEngine(GestureEngine.VERDICT_FAR);
+        final GestureEngine unknownEngine = newEngine(GestureEngine.VERDICT_UNKNOWN);
+
+        BenchmarkRunner.run("engine/unhandled down", i ->
+                engine.onKeyEvent(sUnhandled[i & MASK], false, i) ? 1 : 0);
+        BenchmarkRunner.run("engine/unhandled up", i ->
+                engine.onKeyEvent(sUnhandled[i & MASK], true, i) ? 1 : 0);
+        BenchmarkRunner.run("engine/handled down", i ->
+                engine.onKeyEvent(sHandled[i & MASK], false, i) ? 1 : 0);
+        BenchmarkRunner.run("engine/handled up, far", i ->
+                engine.onKeyEvent(sHandled[i & MASK], true, i) ? 1 : 0);
+        BenchmarkRunner.run("engine/handled up, proximity unknown", i ->
+                unknownEngine.onKeyEvent(sHandled[i & MASK], true, i) ? 1 : 0);
+        BenchmarkRunner.run("engine/mixed up, far", i ->
+                engine.onKeyEvent(sMixed[i & MIXED_MASK], true, i) ? 1 : 0);
+    }
+}
@@ -26,6 +26,7 @@ import androidx.preference.PreferenceManager;
 
 import com.havoc.settings.rogparts.doze.DozeUtils;
 import com.havoc.settings.rogparts.touch.TouchscreenGestureSettings;
+import com.havoc.settings.rogparts.util.BootTaskRunner;
 
 public class BootCompletedReceiver extends BroadcastReceiver {
 
@@ -37,8 +38,11 @@ public class BootCompletedReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(final Context context, Intent intent) {
         if (DEBUG) Log.d(TAG, "Received boot completed intent");
-        DozeUtils.checkDozeService(context);
-        TouchscreenGestureSettings.MainSettingsFragment.restoreTouchscreenGestureStates(context);
+        new BootTaskRunner(TAG)
+                .add("doze", () -> DozeUtils.checkDozeService(context))
+                .add("gestures", () -> TouchscreenGestureSettings.MainSettingsFragment
+                        .restoreTouchscreenGestureStates(context))
+                .run(this);
     }
 
     private boolean hasRestoredTunable(Context context) {
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.doze;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.util.Log;
+import androidx.preference.PreferenceManager;
+
+/**
+ * Immutable snapshot of the doze gesture preferences. The snapshot is replaced, never
+ * modified, whenever one of them changes, so reading it is a single volatile read and
+ * sensor callbacks never touch SharedPreferences.
+ */
+final class DozeConfig {
+
+    private static final String TAG = "DozeConfig";
+    private static final boolean DEBUG = false;
+
+    private static volatile DozeConfig sConfig;
+
+    // Strong reference, SharedPreferences only keeps listeners weakly
+    private static final OnSharedPreferenceChangeListener sListener = (prefs, key) -> {
+        if (DozeUtils.GESTURE_PICK_UP_KEY.equals(key)
+                || DozeUtils.GESTURE_HAND_WAVE_KEY.equals(key)
+                || DozeUtils.GESTURE_POCKET_KEY.equals(key)) {
+            sConfig = new DozeConfig(prefs);
+            if (DEBUG) Log.d(TAG, "Rebuilt after " + key + " changed");
+        }
+    };
+
+    final boolean pickUpEnabled;
+    final boolean handwaveEnabled;
+    final boolean pocketEnabled;
+
+    private DozeConfig(SharedPreferences prefs) {
+        pickUpEnabled = prefs.getBoolean(DozeUtils.GESTURE_PICK_UP_KEY, false);
+        handwaveEnabled = prefs.getBoolean(DozeUtils.GESTURE_HAND_WAVE_KEY, false);
+        pocketEnabled = prefs.getBoolean(DozeUtils.GESTURE_POCKET_KEY, false);
+    }
+
+    static DozeConfig get(Context context) {
+        final DozeConfig config = sConfig;
+        if (config != null) {
+            return config;
+        }
+        synchronized (DozeConfig.class) {
+            if (sConfig == null) {
+                final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(
+                        context.getApplicationContext());
+                prefs.registerOnSharedPreferenceChangeListener(sListener);
+                sConfig = new DozeConfig(prefs);
+            }
+            return sConfig;
+        }
+    }
+
+    boolean anyEnabled() {
+        return pickUpEnabled || handwaveEnabled || pocketEnabled;
+    }
+}
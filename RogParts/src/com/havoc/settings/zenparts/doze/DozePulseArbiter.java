@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.doze;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * The only way detectors pulse the ambient display. One movement can trip several
+ * detectors at once, so a request pulses right away and opens a window of WINDOW_MS
+ * that gets one pulse at most. Within it the highest priority request takes over the
+ * reason without pulsing again, the others are dropped. Granted pulses spend a token
+ * from a bucket of BUCKET_SIZE refilled every REFILL_MS; without a token the request
+ * is dropped.
+ *
+ * The window is keyed on the timestamp of the sample that tripped the detector, not
+ * on delivery time, since batched samples can arrive up to a second late. Reasons
+ * double as priorities, lower wins. All calls happen on the main thread.
+ */
+class DozePulseArbiter {
+
+    private static final String TAG = "DozePulseArbiter";
+    private static final boolean DEBUG = false;
+
+    static final int REASON_PICKUP = 0;
+    static final int REASON_HANDWAVE = 1;
+    static final int REASON_POCKET = 2;
+    private static final int REASON_COUNT = 3;
+
+    private static final String[] REASON_NAMES = { "pickup", "handwave", "pocket" };
+
+    private static final long WINDOW_MS = 200;
+    private static final long WINDOW_NS = WINDOW_MS * 1000000;
+    private static final int BUCKET_SIZE = 2;
+    private static final long REFILL_MS = 2500;
+
+    private final Context mContext;
+
+    private int mTokens = BUCKET_SIZE;
+    private long mLastRefillMs;
+
+    // The reason owning the open window, when its sample was taken and if it pulsed
+    private int mWindowReason = -1;
+    private long mWindowStartNs;
+    private boolean mWindowPulsed;
+
+    private final long[] mRequested = new long[REASON_COUNT];
+    private final long[] mGranted = new long[REASON_COUNT];
+    private final long[] mRateLimited = new long[REASON_COUNT];
+    private final long[] mOutranked = new long[REASON_COUNT];
+    private final long[] mDuplicates = new long[REASON_COUNT];
+    private final long[] mTakeovers = new long[REASON_COUNT];
+    private final long[] mStale = new long[REASON_COUNT];
+
+    DozePulseArbiter(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Asks for a pulse on behalf of a detector. sampleTimeNs is the timestamp of the
+     * sample that tripped it, on the elapsedRealtimeNanos() clock.
+     */
+    void request(int reason, long sampleTimeNs) {
+        if (DEBUG) Log.d(TAG, "Pulse requested by " + REASON_NAMES[reason]);
+        mRequested[reason]++;
+        if (mWindowReason >= 0) {
+            final long sinceStartNs = sampleTimeNs - mWindowStartNs;
+            if (sinceStartNs <= -WINDOW_NS) {
+                // Delivered late for a movement before the open window
+                mStale[reason]++;
+                return;
+            }
+            if (sinceStartNs < WINDOW_NS) {
+                if (reason == mWindowReason) {
+                    // The same detector firing again for the same movement
+                    mDuplicates[reason]++;
+                } else if (reason > mWindowReason) {
+                    mOutranked[reason]++;
+                } else {
+                    takeOver(reason);
+                }
+                return;
+            }
+        }
+        mWindowReason = reason;
+        mWindowStartNs = sampleTimeNs;
+        mWindowPulsed = false;
+
+        refill(SystemClock.elapsedRealtime());
+        if (mTokens == 0) {
+            Log.i(TAG, "Rate limited pulse for " + REASON_NAMES[reason]);
+            mRateLimited[reason]++;
+            return;
+        }
+        mTokens--;
+        mGranted[reason]++;
+        mWindowPulsed = true;
+        DozeUtils.launchDozePulse(mContext);
+    }
+
+    // The window already had its pulse, or was denied one; only its reason changes hands
+    private void takeOver(int reason) {
+        final int previous = mWindowReason;
+        if (mWindowPulsed) {
+            mGranted[previous]--;
+            mGranted[reason]++;
+        } else {
+            mRateLimited[previous]--;
+            mRateLimited[reason]++;
+        }
+        mOutranked[previous]++;
+        mTakeovers[reason]++;
+        mWindowReason = reason;
+    }
+
+    private void refill(long nowMs) {
+        if (mTokens == BUCKET_SIZE) {
+            mLastRefillMs = nowMs;
+            return;
+        }
+        final long refills = (nowMs - mLastRefillMs) / REFILL_MS;
+        mTokens = (int) Math.min(BUCKET_SIZE, mTokens + refills);
+        mLastRefillMs += refills * REFILL_MS;
+    }
+
+    void dump(PrintWriter pw) {
+        refill(SystemClock.elapsedRealtime());
+        pw.println("Doze pulse arbiter:");
+        pw.println("  tokens=" + mTokens + "/" + BUCKET_SIZE + " refill=" + REFILL_MS
+                + "ms window=" + WINDOW_MS + "ms");
+        for (int reason = 0; reason < REASON_COUNT; reason++) {
+            pw.println("  " + REASON_NAMES[reason] + ": requested=" + mRequested[reason]
+                    + " granted=" + mGranted[reason]
+                    + " took over=" + mTakeovers[reason]
+                    + " suppressed=" + (mRateLimited[reason] + mOutranked[reason]
+                            + mDuplicates[reason] + mStale[reason])
+                    + " (rate limited=" + mRateLimited[reason]
+                    + " outranked=" + mOutranked[reason]
+                    + " duplicates=" + mDuplicates[reason]
+                    + " stale=" + mStale[reason] + ")");
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.doze;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Registers each physical doze sensor once and fans its samples out to the detectors
+ * attached to it. Proximity samples are normalized once for everybody: 1 for near,
+ * 0 for far.
+ *
+ * Detectors are added once, when the service is created; enabling or disabling one
+ * only flips its slot, and the sensor is registered while at least one of its
+ * detectors is enabled.
+ *
+ * Each detector declares how late it can afford to see a sample. A sensor is
+ * registered with the smallest tolerance among its enabled detectors as max report
+ * latency, so while only tolerant detectors listen the sensor hub queues samples in
+ * its FIFO and wakes the AP once per batch. Samples of a batch arrive back to back,
+ * oldest first; detectors must measure time with the sample timestamps, never with
+ * the clock at delivery.
+ *
+ * Enabling and disabling detectors happens on the main thread, where the samples are
+ * delivered too; the sensor registrations follow on the doze control thread.
+ */
+class DozeSensorHub {
+
+    private static final String TAG = "DozeSensorHub";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_DETECTORS = 4;
+
+    // Callbacks closer together than this were delivered by the same AP wakeup
+    private static final long WAKEUP_GAP_MS = 50;
+
+    interface Detector {
+        /** A sample of the sensor the detector is attached to, in timestamp order. */
+        void onSample(long timestampNs, float value);
+    }
+
+    private final class SensorSlot implements SensorEventListener {
+        final Sensor sensor;
+        final boolean proximity;
+        final int[] detectors = new int[MAX_DETECTORS];
+        final String registerOp;
+        final Runnable updateRegistration = () -> updateRegistration(this);
+        int detectorCount;
+        int enabledCount;
+        volatile int wantedLatencyUs = -1;
+        // Control thread only, read without synchronization by dump
+        int latencyUs = -1;
+        long registrations;
+        long registeredSinceMs;
+        long registeredMs;
+        // Main thread only
+        long callbacks;
+        long wakeups;
+        long lastCallbackMs;
+        long lastTimestampNs;
+        long reordered;
+        long maxDelayMs;
+
+        SensorSlot(Sensor sensor) {
+            this.sensor = sensor;
+            proximity = sensor.getType() == Sensor.TYPE_PROXIMITY;
+            registerOp = "register " + sensor.getName();
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            final long nowMs = SystemClock.elapsedRealtime();
+            final boolean wakeup = nowMs - lastCallbackMs > WAKEUP_GAP_MS;
+            lastCallbackMs = nowMs;
+            callbacks++;
+            if (wakeup) {
+                wakeups++;
+            }
+            maxDelayMs = Math.max(maxDelayMs,
+                    (SystemClock.elapsedRealtimeNanos() - event.timestamp) / 1000000);
+            if (event.timestamp < lastTimestampNs) {
+                // The FIFO is flushed in order, this should never happen
+                reordered++;
+                return;
+            }
+            lastTimestampNs = event.timestamp;
+
+            final float value = proximity
+                    ? (event.values[0] < sensor.getMaximumRange() ? 1 : 0)
+                    : event.values[0];
+            for (int i = 0; i < detectorCount; i++) {
+                final int id = detectors[i];
+                if (mEnabled[id]) {
+                    mEvents[id]++;
+                    if (wakeup) {
+                        mWakeups[id]++;
+                    }
+                    mDetectors[id].onSample(event.timestamp, value);
+                }
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            /* Empty */
+        }
+    }
+
+    private final SensorManager mSensorManager;
+    private final DozeControlThread mControlThread;
+
+    private final SensorSlot[] mSlots = new SensorSlot[MAX_DETECTORS];
+    private int mSlotCount;
+
+    // Indexed by detector id
+    private final Detector[] mDetectors = new Detector[MAX_DETECTORS];
+    private final String[] mNames = new String[MAX_DETECTORS];
+    private final SensorSlot[] mDetectorSlots = new SensorSlot[MAX_DETECTORS];
+    private final int[] mLatencyUs = new int[MAX_DETECTORS];
+    private final boolean[] mEnabled = new boolean[MAX_DETECTORS];
+    private final long[] mEnabledSinceMs = new long[MAX_DETECTORS];
+    private final long[] mEnabledMs = new long[MAX_DETECTORS];
+    private final long[] mEvents = new long[MAX_DETECTORS];
+    private final long[] mWakeups = new long[MAX_DETECTORS];
+    private int mDetectorCount;
+
+    DozeSensorHub(Context context, DozeControlThread controlThread) {
+        mSensorManager = context.getSystemService(SensorManager.class);
+        mControlThread = controlThread;
+    }
+
+    /**
+     * Attaches a detector to the default sensor of sensorType. maxReportLatencyUs is how
+     * long the detector can wait for a sample, 0 if it needs each one right away.
+     * Returns its id, or -1 if there is no such sensor.
+     */
+    int addDetector(String name, int sensorType, int maxReportLatencyUs, Detector detector) {
+        final Sensor sensor = mSensorManager.getDefaultSensor(sensorType);
+        if (sensor == null || mDetectorCount == MAX_DETECTORS) {
+            Log.w(TAG, "Not adding " + name);
+            return -1;
+        }
+
+        SensorSlot slot = null;
+        for (int i = 0; i < mSlotCount; i++) {
+            if (mSlots[i].sensor == sensor) {
+                slot = mSlots[i];
+                break;
+            }
+        }
+        if (slot == null) {
+            slot = new SensorSlot(sensor);
+            mSlots[mSlotCount++] = slot;
+        }
+
+        final int id = mDetectorCount++;
+        mDetectors[id] = detector;
+        mNames[id] = name;
+        mDetectorSlots[id] = slot;
+        // Without a FIFO the sensor can't batch, don't pretend it does
+        mLatencyUs[id] = sensor.getFifoMaxEventCount() > 0 ? maxReportLatencyUs : 0;
+        slot.detectors[slot.detectorCount++] = id;
+        return id;
+    }
+
+    void setEnabled(int id, boolean enabled) {
+        if (id < 0 || mEnabled[id] == enabled) {
+            return;
+        }
+        final long nowMs = SystemClock.elapsedRealtime();
+        mEnabled[id] = enabled;
+        final SensorSlot slot = mDetectorSlots[id];
+        if (enabled) {
+            slot.enabledCount++;
+            mEnabledSinceMs[id] = nowMs;
+        } else {
+            slot.enabledCount--;
+            mEnabledMs[id] += nowMs - mEnabledSinceMs[id];
+        }
+
+        int latencyUs = -1;
+        for (int i = 0; i < slot.detectorCount; i++) {
+            final int detector = slot.detectors[i];
+            if (mEnabled[detector] && (latencyUs < 0 || mLatencyUs[detector] < latencyUs)) {
+                latencyUs = mLatencyUs[detector];
+            }
+        }
+        if (latencyUs != slot.wantedLatencyUs) {
+            slot.wantedLatencyUs = latencyUs;
+            mControlThread.schedule(slot.registerOp, slot.updateRegistration);
+        }
+    }
+
+    private void updateRegistration(SensorSlot slot) {
+        final int latencyUs = slot.wantedLatencyUs;
+        if (latencyUs == slot.latencyUs) {
+            return;
+        }
+        final long nowMs = SystemClock.elapsedRealtime();
+
+        if (slot.latencyUs >= 0) {
+            if (DEBUG) Log.d(TAG, "Unregistering " + slot.sensor.getName());
+            mSensorManager.unregisterListener(slot, slot.sensor);
+            slot.registeredMs += nowMs - slot.registeredSinceMs;
+        }
+        slot.latencyUs = latencyUs;
+        if (latencyUs >= 0) {
+            if (DEBUG) Log.d(TAG, "Registering " + slot.sensor.getName()
+                    + " with " + latencyUs + "us latency");
+            slot.registrations++;
+            slot.registeredSinceMs = nowMs;
+            mSensorManager.registerListener(slot, slot.sensor,
+                    SensorManager.SENSOR_DELAY_NORMAL, latencyUs);
+        }
+    }
+
+    private static long perHour(long count, long ms) {
+        return ms > 0 ? count * 3600000 / ms : 0;
+    }
+
+    void dump(PrintWriter pw) {
+        final long nowMs = SystemClock.elapsedRealtime();
+        pw.println("Doze sensor hub:");
+        for (int i = 0; i < mSlotCount; i++) {
+            final SensorSlot slot = mSlots[i];
+            final long registeredMs = slot.registeredMs
+                    + (slot.latencyUs >= 0 ? nowMs - slot.registeredSinceMs : 0);
+            pw.println("  " + slot.sensor.getName() + ": fifo=" + slot.sensor.getFifoMaxEventCount()
+                    + " latency=" + slot.latencyUs + "us registrations=" + slot.registrations
+                    + " registered=" + registeredMs + "ms");
+            pw.println("    callbacks=" + slot.callbacks + " wakeups=" + slot.wakeups
+                    + " (" + perHour(slot.wakeups, registeredMs) + "/h)"
+                    + " max delay=" + slot.maxDelayMs + "ms reordered=" + slot.reordered);
+        }
+        for (int id = 0; id < mDetectorCount; id++) {
+            final long enabledMs = mEnabledMs[id]
+                    + (mEnabled[id] ? nowMs - mEnabledSinceMs[id] : 0);
+            pw.println("  " + mNames[id] + ": enabled=" + mEnabled[id]
+                    + " tolerance=" + mLatencyUs[id] + "us events=" + mEvents[id]
+                    + " wakeups=" + mWakeups[id] + " (" + perHour(mWakeups[id], enabledMs) + "/h)");
+        }
+    }
+}
@@ -22,13 +22,24 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Dump with: adb shell dumpsys activity service com.havoc.settings.rogparts/.doze.DozeService
+ */
 public class DozeService extends Service {
     private static final String TAG = "DozeService";
     private static final boolean DEBUG = false;
 
+    private DozeControlThread mControlThread;
+    private DozeSensorHub mSensorHub;
+    private DozePulseArbiter mPulseArbiter;
     private PickupSensor mPickupSensor;
     private HandwaveSensor mHandwaveSensor;
     private PocketSensor mPocketSensor;
@@ -36,9 +47,15 @@ public class DozeService extends Service {
     @Override
     public void onCreate() {
         if (DEBUG) Log.d(TAG, "Creating service");
-        mPickupSensor = new PickupSensor(this);
-        mHandwaveSensor = new HandwaveSensor(this);
-        mPocketSensor = new PocketSensor(this);
+        // Load the preferences now rather than in the first sensor callback
+        DozeConfig.get(this);
+        mControlThread = new DozeControlThread();
+        mControlThread.start();
+        mSensorHub = new DozeSensorHub(this, mControlThread);
+        mPulseArbiter = new DozePulseArbiter(this);
+        mPickupSensor = new PickupSensor(mSensorHub, mPulseArbiter);
+        mHandwaveSensor = new HandwaveSensor(this, mSensorHub, mPulseArbiter);
+        mPocketSensor = new PocketSensor(this, mSensorHub, mPulseArbiter);
 
         IntentFilter screenStateFilter = new IntentFilter();
         screenStateFilter.addAction(Intent.ACTION_SCREEN_ON);
@@ -60,6 +77,7 @@ public class DozeService extends Service {
         mPickupSensor.disable();
         mHandwaveSensor.disable();
         mPocketSensor.disable();
+        mControlThread.quit();
     }
 
     @Override
@@ -67,28 +85,40 @@ public class DozeService extends Service {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        // The hub and the arbiter are only touched on the main thread
+        new Handler(Looper.getMainLooper()).runWithScissors(() -> {
+            mSensorHub.dump(pw);
+            mPulseArbiter.dump(pw);
+            mControlThread.dump(pw);
+        }, 1000);
+    }
+
     private void onDisplayOn() {
         if (DEBUG) Log.d(TAG, "Display on");
-        if (DozeUtils.isPickUpEnabled(this)) {
+        final DozeConfig config = DozeConfig.get(this);
+        if (config.pickUpEnabled) {
             mPickupSensor.disable();
         }
-        if (DozeUtils.isHandwaveGestureEnabled(this)) {
+        if (config.handwaveEnabled) {
             mHandwaveSensor.disable();
         }
-        if (DozeUtils.isPocketGestureEnabled(this)) {
+        if (config.pocketEnabled) {
             mPocketSensor.disable();
         }
     }
 
     private void onDisplayOff() {
         if (DEBUG) Log.d(TAG, "Display off");
-        if (DozeUtils.isPickUpEnabled(this)) {
+        final DozeConfig config = DozeConfig.get(this);
+        if (config.pickUpEnabled) {
             mPickupSensor.enable();
         }
-        if (DozeUtils.isHandwaveGestureEnabled(this)) {
+        if (config.handwaveEnabled) {
             mHandwaveSensor.enable();
         }
-        if (DozeUtils.isPocketGestureEnabled(this)) {
+        if (config.pocketEnabled) {
             mPocketSensor.enable();
         }
     }
@@ -27,10 +27,11 @@ import android.hardware.SensorManager;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.util.Log;
-import androidx.preference.PreferenceManager;
 
 import android.hardware.display.AmbientDisplayConfiguration;
 
+import com.havoc.settings.rogparts.util.SettingsCache;
+
 import static android.provider.Settings.Secure.DOZE_ALWAYS_ON;
 import static android.provider.Settings.Secure.DOZE_ENABLED;
 
@@ -84,11 +85,11 @@ public final class DozeUtils {
     static void enableDoze(Context context, boolean enable) {
         Settings.Secure.putInt(context.getContentResolver(),
                 DOZE_ENABLED, enable ? 1 : 0);
+        SettingsCache.getInstance(context).invalidateSecure(DOZE_ENABLED);
     }
 
     public static boolean isDozeEnabled(Context context) {
-        return Settings.Secure.getInt(context.getContentResolver(),
-                DOZE_ENABLED, 1) != 0;
+        return SettingsCache.getInstance(context).getSecureInt(DOZE_ENABLED, 1) != 0;
     }
 
     static void launchDozePulse(Context context) {
@@ -100,41 +101,38 @@ public final class DozeUtils {
     static void enableAlwaysOn(Context context, boolean enable) {
         Settings.Secure.putIntForUser(context.getContentResolver(),
                 DOZE_ALWAYS_ON, enable ? 1 : 0, UserHandle.USER_CURRENT);
+        SettingsCache.getInstance(context).invalidateSecure(DOZE_ALWAYS_ON);
     }
 
     static boolean isAlwaysOnEnabled(Context context) {
+        final String value = SettingsCache.getInstance(context).getSecureString(DOZE_ALWAYS_ON);
+        if (value != null) {
+            return !"0".equals(value);
+        }
+
         final boolean enabledByDefault = context.getResources()
                 .getBoolean(com.android.internal.R.bool.config_dozeAlwaysOnEnabled);
-
-        return Settings.Secure.getIntForUser(context.getContentResolver(),
-                DOZE_ALWAYS_ON, alwaysOnDisplayAvailable(context) && enabledByDefault ? 1 : 0,
-                UserHandle.USER_CURRENT) != 0;
+        return alwaysOnDisplayAvailable(context) && enabledByDefault;
     }
 
     static boolean alwaysOnDisplayAvailable(Context context) {
         return new AmbientDisplayConfiguration(context).alwaysOnAvailable();
     }
 
-    private static boolean isGestureEnabled(Context context, String gesture) {
-        return PreferenceManager.getDefaultSharedPreferences(context)
-                .getBoolean(gesture, false);
-    }
-
     static boolean isPickUpEnabled(Context context) {
-        return isGestureEnabled(context, GESTURE_PICK_UP_KEY);
+        return DozeConfig.get(context).pickUpEnabled;
     }
 
     static boolean isHandwaveGestureEnabled(Context context) {
-        return isGestureEnabled(context, GESTURE_HAND_WAVE_KEY);
+        return DozeConfig.get(context).handwaveEnabled;
     }
 
     static boolean isPocketGestureEnabled(Context context) {
-        return isGestureEnabled(context, GESTURE_POCKET_KEY);
+        return DozeConfig.get(context).pocketEnabled;
     }
 
     private static boolean sensorsEnabled(Context context) {
-        return isPickUpEnabled(context) || isHandwaveGestureEnabled(context)
-                || isPocketGestureEnabled(context);
+        return DozeConfig.get(context).anyEnabled();
     }
 
     static Sensor getSensor(SensorManager sm, String type) {
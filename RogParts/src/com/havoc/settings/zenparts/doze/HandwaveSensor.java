@@ -19,65 +19,61 @@ package com.havoc.settings.rogparts.doze;
 
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.util.Log;
 
-public class HandwaveSensor implements SensorEventListener {
+public class HandwaveSensor implements DozeSensorHub.Detector {
 
     private static final boolean DEBUG = true;
     private static final String TAG = "HandwaveSensor";
 
-    private SensorManager mSensorManager;
-    private Sensor mSensor;
+    // The pulse must follow the wave right away
+    private static final int MAX_REPORT_LATENCY_US = 0;
+
+    private DozeSensorHub mHub;
+    private DozePulseArbiter mArbiter;
     private Context mContext;
+    private int mId;
 
     private boolean mSawNear = false;
     private long mWaveTime = 0;
 
-    public HandwaveSensor(Context context) {
+    public HandwaveSensor(Context context, DozeSensorHub hub, DozePulseArbiter arbiter) {
         mContext = context;
-        mSensorManager = (SensorManager)
-                mContext.getSystemService(Context.SENSOR_SERVICE);
-        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+        mHub = hub;
+        mArbiter = arbiter;
+        mId = mHub.addDetector(TAG, Sensor.TYPE_PROXIMITY,
+                MAX_REPORT_LATENCY_US, this);
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        boolean isNear = event.values[0] < mSensor.getMaximumRange();
+    public void onSample(long timestampNs, float value) {
+        boolean isNear = value == 1;
         if (mSawNear && !isNear) {
-            if (shouldPulse(event.timestamp)) {
-                DozeUtils.launchDozePulse(mContext);
+            if (shouldPulse(timestampNs)) {
+                mArbiter.request(DozePulseArbiter.REASON_HANDWAVE, timestampNs);
             }
         } else {
-            mWaveTime = event.timestamp;
+            mWaveTime = timestampNs;
         }
         mSawNear = isNear;
     }
 
     private boolean shouldPulse(long timestamp) {
         long delta = timestamp - mWaveTime;
-        if ((DozeUtils.isHandwaveGestureEnabled(mContext)) && (delta < 1000000000L)) { // Wave must be less than 1 sencond
+        if ((DozeConfig.get(mContext).handwaveEnabled) && (delta < 1000000000L)) { // Wave must be less than 1 sencond
             Log.d(TAG, "handwave unlock");
             return true;
         }
         return false;
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        /* Empty */
-    }
-
     protected void enable() {
         if (DEBUG) Log.d(TAG, "Enabling");
-        mSensorManager.registerListener(this, mSensor,
-                SensorManager.SENSOR_DELAY_NORMAL);
+        mHub.setEnabled(mId, true);
     }
 
     protected void disable() {
         if (DEBUG) Log.d(TAG, "Disabling");
-        mSensorManager.unregisterListener(this, mSensor);
+        mHub.setEnabled(mId, false);
     }
 }
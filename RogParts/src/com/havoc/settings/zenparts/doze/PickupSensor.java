@@ -17,77 +17,56 @@
 
 package com.havoc.settings.rogparts.doze;
 
-import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-
-public class PickupSensor implements SensorEventListener {
+public class PickupSensor implements DozeSensorHub.Detector {
 
     private static final boolean DEBUG = false;
     private static final String TAG = "PickupSensor";
 
-    private static final int MIN_PULSE_INTERVAL_MS = 2500;
+    // Tilts right after the screen went off come from putting the phone down
+    private static final int MIN_ENABLED_MS = 2500;
 
-    private SensorManager mSensorManager;
-    private Sensor mSensor;
-    private Context mContext;
-    private ExecutorService mExecutorService;
+    // The pulse must follow the pick up right away
+    private static final int MAX_REPORT_LATENCY_US = 0;
 
-    private long mEntryTimestamp;
+    private DozeSensorHub mHub;
+    private DozePulseArbiter mArbiter;
+    private int mId;
 
-    public PickupSensor(Context context) {
-        mContext = context;
-        mSensorManager = mContext.getSystemService(SensorManager.class);
-        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_TILT_DETECTOR);
-        mExecutorService = Executors.newSingleThreadExecutor();
-    }
+    private long mEntryTimestamp;
 
-    private Future<?> submit(Runnable runnable) {
-        return mExecutorService.submit(runnable);
+    public PickupSensor(DozeSensorHub hub, DozePulseArbiter arbiter) {
+        mHub = hub;
+        mArbiter = arbiter;
+        mId = mHub.addDetector(TAG, Sensor.TYPE_TILT_DETECTOR,
+                MAX_REPORT_LATENCY_US, this);
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        if (DEBUG) Log.d(TAG, "Got sensor event: " + event.values[0]);
+    public void onSample(long timestampNs, float value) {
+        if (DEBUG) Log.d(TAG, "Got sensor event: " + value);
 
-        long delta = SystemClock.elapsedRealtime() - mEntryTimestamp;
-        if (delta < MIN_PULSE_INTERVAL_MS) {
+        long delta = timestampNs / 1000000 - mEntryTimestamp;
+        if (delta < MIN_ENABLED_MS) {
             return;
         }
 
-        mEntryTimestamp = SystemClock.elapsedRealtime();
-
-        if (event.values[0] == 1) {
-            DozeUtils.launchDozePulse(mContext);
+        if (value == 1) {
+            mArbiter.request(DozePulseArbiter.REASON_PICKUP, timestampNs);
         }
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        /* Empty */
-    }
-
     protected void enable() {
         if (DEBUG) Log.d(TAG, "Enabling");
-        submit(() -> {
-            mEntryTimestamp = SystemClock.elapsedRealtime();
-            mSensorManager.registerListener(this, mSensor,
-                    SensorManager.SENSOR_DELAY_NORMAL);
-        });
+        mEntryTimestamp = SystemClock.elapsedRealtime();
+        mHub.setEnabled(mId, true);
     }
 
     protected void disable() {
         if (DEBUG) Log.d(TAG, "Disabling");
-        submit(() -> {
-            mSensorManager.unregisterListener(this, mSensor);
-        });
+        mHub.setEnabled(mId, false);
     }
 }
@@ -19,65 +19,62 @@ package com.havoc.settings.rogparts.doze;
 
 import android.content.Context;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.util.Log;
 
-public class PocketSensor implements SensorEventListener {
+public class PocketSensor implements DozeSensorHub.Detector {
 
     private static final boolean DEBUG = true;
     private static final String TAG = "PocketSensor";
 
-    private SensorManager mSensorManager;
-    private Sensor mSensor;
+    // Only the time spent near matters and that comes from the sample timestamps,
+    // so the samples can sit in the sensor FIFO for a while
+    private static final int MAX_REPORT_LATENCY_US = 1000000;
+
+    private DozeSensorHub mHub;
+    private DozePulseArbiter mArbiter;
     private Context mContext;
+    private int mId;
 
     private boolean mSawNear = false;
     private long mInPocketTime = 0;
 
-    public PocketSensor(Context context) {
+    public PocketSensor(Context context, DozeSensorHub hub, DozePulseArbiter arbiter) {
         mContext = context;
-        mSensorManager = (SensorManager)
-                mContext.getSystemService(Context.SENSOR_SERVICE);
-        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+        mHub = hub;
+        mArbiter = arbiter;
+        mId = mHub.addDetector(TAG, Sensor.TYPE_PROXIMITY,
+                MAX_REPORT_LATENCY_US, this);
     }
 
     @Override
-    public void onSensorChanged(SensorEvent event) {
-        boolean isNear = event.values[0] < mSensor.getMaximumRange();
+    public void onSample(long timestampNs, float value) {
+        boolean isNear = value == 1;
         if (mSawNear && !isNear) {
-            if (shouldPulse(event.timestamp)) {
-                DozeUtils.launchDozePulse(mContext);
+            if (shouldPulse(timestampNs)) {
+                mArbiter.request(DozePulseArbiter.REASON_POCKET, timestampNs);
             }
         } else {
-            mInPocketTime = event.timestamp;
+            mInPocketTime = timestampNs;
         }
         mSawNear = isNear;
     }
 
     private boolean shouldPulse(long timestamp) {
         long delta = timestamp - mInPocketTime;
-        if ((DozeUtils.isPocketGestureEnabled(mContext)) && (delta > 3000000000L)) { // Pocket must be more than 3 seconds
+        if ((DozeConfig.get(mContext).pocketEnabled) && (delta > 3000000000L)) { // Pocket must be more than 3 seconds
             Log.d(TAG, "pocket unlock");
             return true;
         }
         return false;
     }
 
-    @Override
-    public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        /* Empty */
-    }
-
     protected void enable() {
         if (DEBUG) Log.d(TAG, "Enabling");
-        mSensorManager.registerListener(this, mSensor,
-                SensorManager.SENSOR_DELAY_NORMAL);
+        mHub.setEnabled(mId, true);
     }
 
     protected void disable() {
         if (DEBUG) Log.d(TAG, "Disabling");
-        mSensorManager.unregisterListener(this, mSensor);
+        mHub.setEnabled(mId, false);
     }
 }
@@ -17,16 +17,21 @@
 package com.havoc.settings.rogparts.preference;
 
 import android.content.ContentResolver;
+import android.content.Context;
 import android.preference.PreferenceDataStore;
 import android.provider.Settings;
 
+import com.havoc.settings.rogparts.util.SettingsCache;
+
 public class SystemSettingsStore extends androidx.preference.PreferenceDataStore
         implements PreferenceDataStore {
 
     private ContentResolver mContentResolver;
+    private SettingsCache mSettingsCache;
 
-    public SystemSettingsStore(ContentResolver contentResolver) {
-        mContentResolver = contentResolver;
+    public SystemSettingsStore(Context context) {
+        mContentResolver = context.getContentResolver();
+        mSettingsCache = SettingsCache.getInstance(context);
     }
 
     public boolean getBoolean(String key, boolean defValue) {
@@ -34,19 +39,19 @@ public class SystemSettingsStore extends androidx.preference.PreferenceDataStore
     }
 
     public float getFloat(String key, float defValue) {
-        return Settings.System.getFloat(mContentResolver, key, defValue);
+        return mSettingsCache.getSystemFloat(key, defValue);
     }
 
     public int getInt(String key, int defValue) {
-        return Settings.System.getInt(mContentResolver, key, defValue);
+        return mSettingsCache.getSystemInt(key, defValue);
     }
 
     public long getLong(String key, long defValue) {
-        return Settings.System.getLong(mContentResolver, key, defValue);
+        return mSettingsCache.getSystemLong(key, defValue);
     }
 
     public String getString(String key, String defValue) {
-        String result = Settings.System.getString(mContentResolver, key);
+        String result = mSettingsCache.getSystemString(key);
         return result == null ? defValue : result;
     }
 
@@ -56,18 +61,22 @@ public class SystemSettingsStore extends androidx.preference.PreferenceDataStore
 
     public void putFloat(String key, float value) {
         Settings.System.putFloat(mContentResolver, key, value);
+        mSettingsCache.invalidateSystem(key);
     }
 
     public void putInt(String key, int value) {
         Settings.System.putInt(mContentResolver, key, value);
+        mSettingsCache.invalidateSystem(key);
     }
 
     public void putLong(String key, long value) {
         Settings.System.putLong(mContentResolver, key, value);
+        mSettingsCache.invalidateSystem(key);
     }
 
     public void putString(String key, String value) {
         Settings.System.putString(mContentResolver, key, value);
+        mSettingsCache.invalidateSystem(key);
     }
 
 }
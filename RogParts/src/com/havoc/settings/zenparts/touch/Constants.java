@@ -17,23 +17,17 @@
 
 package com.havoc.settings.rogparts.touch;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.os.UserHandle;
-import android.provider.Settings;
-import androidx.preference.SwitchPreference;
-import androidx.preference.PreferenceManager;
-
-import android.media.AudioManager;
-
 public class Constants {
 
     // Broadcast action for settings update
     static final String UPDATE_PREFS_ACTION = "com.havoc.settings.rogparts.touch.UPDATE_SETTINGS";
 
+    // Broadcast action to dump gesture statistics to logcat (requires android.permission.DUMP)
+    static final String DUMP_STATS_ACTION = "com.havoc.settings.rogparts.touch.DUMP_STATS";
+    // Broadcast action to export the gesture flight recorder as CSV (requires android.permission.DUMP)
+    static final String EXPORT_FLIGHT_RECORDER_ACTION =
+            "com.havoc.settings.rogparts.touch.EXPORT_FLIGHT_RECORDER";
+
     // Screen off Gesture actions
     static final int ACTION_BACK = 2;
     static final int ACTION_HOME = 3;
@@ -60,6 +54,44 @@ public class Constants {
     static final int ACTION_CAMERA_MOTOR = 24;
     static final int ACTION_FM_RADIO = 25;
 
+    // Short action names for dumps and traces
+    private static final String[] sActionNames = new String[ACTION_FM_RADIO + 1];
+
+    static {
+        sActionNames[ACTION_BACK] = "back";
+        sActionNames[ACTION_HOME] = "home";
+        sActionNames[ACTION_RECENTS] = "recents";
+        sActionNames[ACTION_UP] = "up";
+        sActionNames[ACTION_DOWN] = "down";
+        sActionNames[ACTION_LEFT] = "left";
+        sActionNames[ACTION_RIGHT] = "right";
+        sActionNames[ACTION_ASSISTANT] = "assistant";
+        sActionNames[ACTION_WAKE_UP] = "wake_up";
+        sActionNames[ACTION_SCREENSHOT] = "screenshot";
+        sActionNames[ACTION_SCREEN_OFF] = "screen_off";
+        sActionNames[ACTION_FLASHLIGHT] = "flashlight";
+        sActionNames[ACTION_CAMERA] = "camera";
+        sActionNames[ACTION_BROWSER] = "browser";
+        sActionNames[ACTION_DIALER] = "dialer";
+        sActionNames[ACTION_EMAIL] = "email";
+        sActionNames[ACTION_MESSAGES] = "messages";
+        sActionNames[ACTION_PLAY_PAUSE_MUSIC] = "play_pause";
+        sActionNames[ACTION_PREVIOUS_TRACK] = "previous_track";
+        sActionNames[ACTION_NEXT_TRACK] = "next_track";
+        sActionNames[ACTION_VOLUME_DOWN] = "volume_down";
+        sActionNames[ACTION_VOLUME_UP] = "volume_up";
+        sActionNames[ACTION_CAMERA_MOTOR] = "camera_motor";
+        sActionNames[ACTION_FM_RADIO] = "fm_radio";
+    }
+
+    static boolean hasActionName(int action) {
+        return action >= 0 && action < sActionNames.length && sActionNames[action] != null;
+    }
+
+    static String getActionName(int action) {
+        return hasActionName(action) ? sActionNames[action] : "none";
+    }
+
     // Broadcast extra: keycode mapping (int[]: key = gesture ID, value = keycode)
     static final String UPDATE_EXTRA_KEYCODE_MAPPING = "keycode_mappings";
     // Broadcast extra: assigned actions (int[]: key = gesture ID, value = action)
@@ -85,4 +117,41 @@ public class Constants {
         GESTURE_Z,
         GESTURE_V
     };
+
+    // Scan code classification flags
+    static final int FLAG_SUPPORTED = 1 << 0;
+    static final int FLAG_HAPTIC = 1 << 1;
+
+    // Highest scan code reported by the touchscreen controller
+    static final int MAX_SCAN_CODE = 127;
+
+    // Track skips within this long of the previous one are summed by MediaKeyDispatcher
+    static final long TRACK_SKIP_COALESCE_WINDOW_MS = 700;
+
+    // Letter gestures drawn on the panel get haptic feedback
+    private static final int[] sHapticKeycodes = new int[]
+    {
+        GESTURE_C,
+        GESTURE_Z,
+        GESTURE_V
+    };
+
+    // Dense scan code -> FLAG_* table, so classification never has to search
+    static final byte[] sScanCodeFlags = new byte[MAX_SCAN_CODE + 1];
+
+    static {
+        for (int scanCode : sSupportedKeycodes) {
+            sScanCodeFlags[scanCode] |= FLAG_SUPPORTED;
+        }
+        for (int scanCode : sHapticKeycodes) {
+            sScanCodeFlags[scanCode] |= FLAG_HAPTIC;
+        }
+    }
+
+    static int getScanCodeFlags(int scanCode) {
+        if (scanCode < 0 || scanCode > MAX_SCAN_CODE) {
+            return 0;
+        }
+        return sScanCodeFlags[scanCode];
+    }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gesture admission logic, free of Android dependencies: scan code filtering, setup
+ * gating, proximity gating and action selection. TouchKeyHandler supplies the clock,
+ * sensors, settings and action sink and keeps only the service plumbing.
+ */
+class GestureEngine {
+
+    static final int VERDICT_FAR = 0;
+    static final int VERDICT_NEAR = 1;
+    static final int VERDICT_UNKNOWN = 2;
+
+    interface Clock {
+        long nanoTime();
+    }
+
+    interface ProximitySource {
+        /** One of VERDICT_FAR, VERDICT_NEAR or VERDICT_UNKNOWN. */
+        int getVerdict();
+    }
+
+    interface SetupState {
+        boolean isSetupComplete();
+    }
+
+    interface ActionSink {
+        /** Whether a gesture is already queued for execution. */
+        boolean isGestureQueued();
+
+        /** Run the action now. */
+        void dispatch(int action, int scanCode, long eventTimeNs, long entryNs,
+                long recordId);
+
+        /** Run the action once the proximity state is known. */
+        void dispatchAfterProximityCheck(int action, int scanCode, long eventTimeNs,
+                long entryNs, long recordId);
+
+        /** The DOWN of a gesture that may be dispatched on its UP arrived. */
+        void onGestureDown(int action);
+
+        /** The gesture of the last onGestureDown() was dropped on its UP. */
+        void onGestureAbandoned();
+    }
+
+    private final Clock mClock;
+    private final ProximitySource mProximity;
+    private final SetupState mSetupState;
+    private final ActionSink mSink;
+    private final GestureFlightRecorder mRecorder;
+
+    private volatile GestureMapping mMapping = GestureMapping.EMPTY;
+    private volatile boolean mTouchscreenHaptic;
+
+    private final AtomicLong mDroppedBusy = new AtomicLong();
+    private final AtomicLong mDroppedProximity = new AtomicLong();
+
+    /**
+     * @param proximity the proximity source, or null if the device has none
+     */
+    GestureEngine(Clock clock, ProximitySource proximity, SetupState setupState,
+            ActionSink sink, GestureFlightRecorder recorder) {
+        mClock = clock;
+        mProximity = proximity;
+        mSetupState = setupState;
+        mSink = sink;
+        mRecorder = recorder;
+    }
+
+    /**
+     * Returns true if the event was consumed as a gesture, false to pass it through.
+     *
+     * @param eventTimeMs KeyEvent.getEventTime(), in the uptimeMillis() time base
+     */
+    boolean onKeyEvent(int scanCode, boolean isUp, long eventTimeMs) {
+        final long entryNs = mClock.nanoTime();
+        final long eventTimeNs = eventTimeMs * 1000000L;
+        final int flags = Constants.getScanCodeFlags(scanCode);
+        final int action = mMapping.getAction(scanCode);
+        if (action < 0 || !isUp || !mSetupState.isSetupComplete()) {
+            if (!isUp && action > 0 && mSetupState.isSetupComplete()
+                    && (mProximity == null || mProximity.getVerdict() != VERDICT_NEAR)) {
+                mSink.onGestureDown(action);
+            }
+            if ((flags & Constants.FLAG_HAPTIC) != 0) {
+                mTouchscreenHaptic = true;
+            }
+            if (isUp && (flags & Constants.FLAG_SUPPORTED) != 0) {
+                mRecorder.record(scanCode, action, eventTimeNs, VERDICT_UNKNOWN,
+                        action < 0 ? GestureFlightRecorder.DROP_NOT_MAPPED
+                                : GestureFlightRecorder.DROP_SETUP_INCOMPLETE);
+            }
+            return false;
+        }
+
+        if (action == 0) {
+            mRecorder.record(scanCode, action, eventTimeNs, VERDICT_UNKNOWN,
+                    GestureFlightRecorder.DROP_DISABLED);
+            return true;
+        }
+
+        if (mSink.isGestureQueued()) {
+            // Only one gesture may be queued at a time
+            mDroppedBusy.incrementAndGet();
+            mSink.onGestureAbandoned();
+            mRecorder.record(scanCode, action, eventTimeNs, VERDICT_UNKNOWN,
+                    GestureFlightRecorder.DROP_BUSY);
+            return true;
+        }
+
+        final int verdict = mProximity != null ? mProximity.getVerdict() : VERDICT_FAR;
+        if (verdict == VERDICT_NEAR) {
+            // Covered sensor, most likely in a pocket
+            mDroppedProximity.incrementAndGet();
+            mSink.onGestureAbandoned();
+            mRecorder.record(scanCode, action, eventTimeNs, verdict,
+                    GestureFlightRecorder.DROP_PROXIMITY_NEAR);
+            return true;
+        }
+
+        final long recordId = mRecorder.record(scanCode, action, eventTimeNs, verdict,
+                GestureFlightRecorder.DROP_NONE);
+        if (verdict == VERDICT_UNKNOWN) {
+            mSink.dispatchAfterProximityCheck(action, scanCode, eventTimeNs, entryNs, recordId);
+        } else {
+            mSink.dispatch(action, scanCode, eventTimeNs, entryNs, recordId);
+        }
+        return true;
+    }
+
+    void setMapping(int[] scanCodes, int[] actions) {
+        // Updates arrive serially on one thread, so the version needs no synchronization
+        mMapping = new GestureMapping(scanCodes, actions, mMapping.getVersion() + 1);
+    }
+
+    int getMappingVersion() {
+        return mMapping.getVersion();
+    }
+
+    boolean isTouchscreenHaptic() {
+        return mTouchscreenHaptic;
+    }
+
+    long getDroppedBusyCount() {
+        return mDroppedBusy.get();
+    }
+
+    long getDroppedProximityCount() {
+        return mDroppedProximity.get();
+    }
+
+    /**
+     * The bounded proximity wait came back near after the gesture was admitted.
+     */
+    void onProximityRejected(long recordId) {
+        mDroppedProximity.incrementAndGet();
+        mRecorder.onDropped(recordId, VERDICT_NEAR, GestureFlightRecorder.DROP_PROXIMITY_NEAR);
+    }
+}
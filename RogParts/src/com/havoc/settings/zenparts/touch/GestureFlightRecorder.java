@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Always-on ring buffer of the last CAPACITY gesture decisions, kept in preallocated
+ * primitive arrays so recording never allocates.
+ */
+class GestureFlightRecorder {
+
+    static final int CAPACITY = 256;
+
+    static final int DROP_NONE = 0;
+    static final int DROP_NOT_MAPPED = 1;
+    static final int DROP_SETUP_INCOMPLETE = 2;
+    static final int DROP_DISABLED = 3;
+    static final int DROP_BUSY = 4;
+    static final int DROP_PROXIMITY_NEAR = 5;
+
+    private static final String[] sDropReasons = {
+        "none", "not_mapped", "setup_incomplete", "disabled", "busy", "proximity_near"
+    };
+    private static final String[] sVerdicts = { "far", "near", "unknown" };
+
+    private final int[] mScanCodes = new int[CAPACITY];
+    private final int[] mActions = new int[CAPACITY];
+    private final long[] mEventTimesNs = new long[CAPACITY];
+    private final long[] mDispatchTimesNs = new long[CAPACITY];
+    private final byte[] mVerdicts = new byte[CAPACITY];
+    private final byte[] mDropReasons = new byte[CAPACITY];
+
+    // Id of the next record; record n lives in slot n % CAPACITY
+    private long mNextId;
+
+    /**
+     * Returns the id of the new record, for {@link #onDispatched} and {@link #onDropped}.
+     */
+    synchronized long record(int scanCode, int action, long eventTimeNs, int verdict,
+            int dropReason) {
+        final long id = mNextId++;
+        final int slot = (int) (id % CAPACITY);
+        mScanCodes[slot] = scanCode;
+        mActions[slot] = action;
+        mEventTimesNs[slot] = eventTimeNs;
+        mDispatchTimesNs[slot] = 0;
+        mVerdicts[slot] = (byte) verdict;
+        mDropReasons[slot] = (byte) dropReason;
+        return id;
+    }
+
+    synchronized void onDispatched(long id, long dispatchNs) {
+        if (isLive(id)) {
+            mDispatchTimesNs[(int) (id % CAPACITY)] = dispatchNs;
+        }
+    }
+
+    synchronized void onDropped(long id, int verdict, int dropReason) {
+        if (isLive(id)) {
+            final int slot = (int) (id % CAPACITY);
+            mVerdicts[slot] = (byte) verdict;
+            mDropReasons[slot] = (byte) dropReason;
+        }
+    }
+
+    /**
+     * Writes the buffer oldest first as CSV. Dispatch time is 0 for gestures that never ran.
+     * The buffer is copied under the lock and written outside it, so a slow writer never
+     * holds up recording.
+     */
+    void writeCsv(Writer writer) throws IOException {
+        final int[] scanCodes;
+        final int[] actions;
+        final long[] eventTimesNs;
+        final long[] dispatchTimesNs;
+        final byte[] verdicts;
+        final byte[] dropReasons;
+        final long nextId;
+        synchronized (this) {
+            scanCodes = mScanCodes.clone();
+            actions = mActions.clone();
+            eventTimesNs = mEventTimesNs.clone();
+            dispatchTimesNs = mDispatchTimesNs.clone();
+            verdicts = mVerdicts.clone();
+            dropReasons = mDropReasons.clone();
+            nextId = mNextId;
+        }
+
+        writer.write("id,scan_code,action,event_time_ns,dispatch_time_ns,proximity,drop_reason\n");
+        final long first = Math.max(0, nextId - CAPACITY);
+        for (long id = first; id < nextId; id++) {
+            final int slot = (int) (id % CAPACITY);
+            writer.write(id + "," + scanCodes[slot]
+                    + "," + GestureMacro.getName(actions[slot])
+                    + "," + eventTimesNs[slot]
+                    + "," + dispatchTimesNs[slot]
+                    + "," + sVerdicts[verdicts[slot]]
+                    + "," + sDropReasons[dropReasons[slot]] + "\n");
+        }
+    }
+
+    private boolean isLive(long id) {
+        return id >= 0 && id < mNextId && mNextId - id <= CAPACITY;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import android.os.Handler;
+import android.os.VibrationEffect;
+import android.os.Vibrator;
+
+import com.android.internal.os.BackgroundThread;
+
+import com.havoc.settings.rogparts.util.SettingsCache;
+
+/**
+ * Haptic feedback for gesture actions. Effects are predefined HAL effects composed once
+ * per action, and the vibrator call is made on the background thread so it never
+ * delays the action itself.
+ */
+class GestureHaptics {
+
+    private final Vibrator mVibrator;
+    private final SettingsCache mSettingsCache;
+    private final Handler mHandler;
+
+    private final VibrationEffect[] mEffects = new VibrationEffect[Constants.ACTION_FM_RADIO + 1];
+    private final Runnable[] mVibrateRunnables = new Runnable[Constants.ACTION_FM_RADIO + 1];
+
+    GestureHaptics(Vibrator vibrator, SettingsCache settingsCache) {
+        mVibrator = vibrator;
+        mSettingsCache = settingsCache;
+        mHandler = BackgroundThread.getHandler();
+
+        final VibrationEffect tick = VibrationEffect.get(VibrationEffect.EFFECT_TICK);
+        final VibrationEffect click = VibrationEffect.get(VibrationEffect.EFFECT_CLICK);
+        final VibrationEffect heavyClick = VibrationEffect.get(VibrationEffect.EFFECT_HEAVY_CLICK);
+
+        // Navigation and system keys
+        mEffects[Constants.ACTION_BACK] = click;
+        mEffects[Constants.ACTION_HOME] = click;
+        mEffects[Constants.ACTION_RECENTS] = click;
+        mEffects[Constants.ACTION_ASSISTANT] = click;
+        mEffects[Constants.ACTION_WAKE_UP] = click;
+        mEffects[Constants.ACTION_SCREENSHOT] = click;
+        mEffects[Constants.ACTION_SCREEN_OFF] = click;
+
+        // Small adjustments
+        mEffects[Constants.ACTION_UP] = tick;
+        mEffects[Constants.ACTION_DOWN] = tick;
+        mEffects[Constants.ACTION_LEFT] = tick;
+        mEffects[Constants.ACTION_RIGHT] = tick;
+        mEffects[Constants.ACTION_PLAY_PAUSE_MUSIC] = tick;
+        mEffects[Constants.ACTION_PREVIOUS_TRACK] = tick;
+        mEffects[Constants.ACTION_NEXT_TRACK] = tick;
+        mEffects[Constants.ACTION_VOLUME_DOWN] = tick;
+        mEffects[Constants.ACTION_VOLUME_UP] = tick;
+
+        // Launches and the torch, felt through a pocket or with the screen off
+        mEffects[Constants.ACTION_FLASHLIGHT] = heavyClick;
+        mEffects[Constants.ACTION_CAMERA] = heavyClick;
+        mEffects[Constants.ACTION_BROWSER] = heavyClick;
+        mEffects[Constants.ACTION_DIALER] = heavyClick;
+        mEffects[Constants.ACTION_EMAIL] = heavyClick;
+        mEffects[Constants.ACTION_MESSAGES] = heavyClick;
+        mEffects[Constants.ACTION_CAMERA_MOTOR] = heavyClick;
+        mEffects[Constants.ACTION_FM_RADIO] = heavyClick;
+
+        for (int i = 0; i < mEffects.length; i++) {
+            final VibrationEffect effect = mEffects[i];
+            if (effect != null) {
+                mVibrateRunnables[i] = () -> mVibrator.vibrate(effect);
+            }
+        }
+    }
+
+    void perform(int action) {
+        if (mVibrator == null || action < 0 || action >= mVibrateRunnables.length
+                || mVibrateRunnables[action] == null) {
+            return;
+        }
+        if (mSettingsCache.getSystemInt(SettingsCache.KEY_TOUCHSCREEN_HAPTIC_FEEDBACK, 1) == 0) {
+            return;
+        }
+        mHandler.post(mVibrateRunnables[action]);
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import android.os.Trace;
+
+import java.io.PrintWriter;
+
+/**
+ * Per-action and per-gesture latency histograms for the gesture pipeline:
+ *   delivery  - KeyEvent.getEventTime() to handleKeyEvent entry
+ *   queue     - handleKeyEvent entry to EventHandler dispatch (includes proximity wait)
+ *   execution - EventHandler dispatch to action completion
+ *   total     - KeyEvent.getEventTime() to action completion
+ *
+ * All timestamps are in the System.nanoTime() / uptimeMillis() time base.
+ */
+class GestureLatencyTracker {
+
+    private static final long TRACE_TAG = Trace.TRACE_TAG_INPUT;
+
+    private static final class ActionStats {
+        final String traceName;
+        final LatencyHistogram delivery = new LatencyHistogram("delivery");
+        final LatencyHistogram queue = new LatencyHistogram("queue");
+        final LatencyHistogram execution = new LatencyHistogram("execution");
+        final LatencyHistogram total = new LatencyHistogram("total");
+
+        ActionStats(String name) {
+            traceName = "TouchGesture:" + name;
+        }
+    }
+
+    private final ActionStats[] mActionStats = new ActionStats[Constants.ACTION_FM_RADIO + 1];
+    private final LatencyHistogram[] mGestureStats =
+            new LatencyHistogram[Constants.MAX_SCAN_CODE + 1];
+
+    GestureLatencyTracker() {
+        for (int i = 0; i < mActionStats.length; i++) {
+            if (Constants.hasActionName(i)) {
+                mActionStats[i] = new ActionStats(Constants.getActionName(i));
+            }
+        }
+        for (int scanCode : Constants.sSupportedKeycodes) {
+            mGestureStats[scanCode] = new LatencyHistogram("scanCode=" + scanCode);
+        }
+    }
+
+    /**
+     * Opens the Perfetto trace section around an action. Returns false for unknown
+     * actions, in which case {@link #onActionComplete} must not be called.
+     */
+    boolean onActionStart(int action) {
+        if (action < 0 || action >= mActionStats.length || mActionStats[action] == null) {
+            return false;
+        }
+        Trace.traceBegin(TRACE_TAG, mActionStats[action].traceName);
+        return true;
+    }
+
+    void onActionComplete(int action, int scanCode, long eventTimeNs, long entryNs,
+            long dispatchNs) {
+        Trace.traceEnd(TRACE_TAG);
+
+        final long completeNs = System.nanoTime();
+        final ActionStats stats = mActionStats[action];
+        stats.delivery.record(entryNs - eventTimeNs);
+        stats.queue.record(dispatchNs - entryNs);
+        stats.execution.record(completeNs - dispatchNs);
+        stats.total.record(completeNs - eventTimeNs);
+
+        if (scanCode >= 0 && scanCode < mGestureStats.length
+                && mGestureStats[scanCode] != null) {
+            mGestureStats[scanCode].record(completeNs - eventTimeNs);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Gesture latency (per action):");
+        for (int i = 0; i < mActionStats.length; i++) {
+            final ActionStats stats = mActionStats[i];
+            if (stats == null || stats.total.getCount() == 0) {
+                continue;
+            }
+            pw.println("  " + Constants.getActionName(i) + ":");
+            stats.delivery.dump(pw, "    ");
+            stats.queue.dump(pw, "    ");
+            stats.execution.dump(pw, "    ");
+            stats.total.dump(pw, "    ");
+        }
+        pw.println("Gesture latency (per gesture, total):");
+        for (LatencyHistogram histogram : mGestureStats) {
+            if (histogram != null) {
+                histogram.dump(pw, "  ");
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+/**
+ * Ordered list of actions bound to one gesture, packed into the int that used to hold
+ * a single action: step i lives in bits [5 * i, 5 * i + 5) and the list ends at the
+ * first zero step. A plain action is therefore a one step macro with the same value,
+ * so stored preferences, the update broadcast and GestureMapping are unchanged.
+ */
+final class GestureMacro {
+
+    static final int MAX_STEPS = 6;
+
+    private static final int STEP_BITS = 5;
+    private static final int STEP_MASK = (1 << STEP_BITS) - 1;
+
+    // Steps that only hand work off to another service and touch no UI state: they do
+    // not depend on the order of the other steps and may run concurrently with them
+    private static final boolean[] sIndependent = new boolean[Constants.ACTION_FM_RADIO + 1];
+
+    static {
+        sIndependent[Constants.ACTION_FLASHLIGHT] = true;
+        sIndependent[Constants.ACTION_VOLUME_DOWN] = true;
+        sIndependent[Constants.ACTION_VOLUME_UP] = true;
+    }
+
+    private GestureMacro() {
+    }
+
+    /**
+     * Packs up to MAX_STEPS actions. Returns -1 if an action does not fit a step.
+     */
+    static int pack(int... actions) {
+        if (actions.length > MAX_STEPS) {
+            return -1;
+        }
+        int macro = 0;
+        for (int i = actions.length - 1; i >= 0; i--) {
+            if (actions[i] <= 0 || actions[i] > STEP_MASK) {
+                return -1;
+            }
+            macro = (macro << STEP_BITS) | actions[i];
+        }
+        return macro;
+    }
+
+    static int getStepCount(int macro) {
+        int count = 0;
+        while (count < MAX_STEPS && getStep(macro, count) != 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the action of step index, or 0 past the end of the macro.
+     */
+    static int getStep(int macro, int index) {
+        if (macro <= 0 || index < 0 || index >= MAX_STEPS) {
+            return 0;
+        }
+        return (macro >>> (STEP_BITS * index)) & STEP_MASK;
+    }
+
+    static boolean isMacro(int macro) {
+        return getStep(macro, 1) != 0;
+    }
+
+    /**
+     * Returns true if the macro has a step and every step has an entry in actions. Steps
+     * come from the update broadcast, which anyone can send, so a step past the end of
+     * actions is rejected rather than indexed.
+     */
+    static boolean isRunnable(int macro, Object[] actions) {
+        final int steps = getStepCount(macro);
+        if (steps == 0) {
+            return false;
+        }
+        for (int i = 0; i < steps; i++) {
+            final int step = getStep(macro, i);
+            if (step >= actions.length || actions[step] == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isIndependent(int action) {
+        return action >= 0 && action < sIndependent.length && sIndependent[action];
+    }
+
+    /**
+     * Step names joined with '+', for dumps and the flight recorder.
+     */
+    static String getName(int macro) {
+        final int steps = getStepCount(macro);
+        if (steps <= 1) {
+            return Constants.getActionName(macro);
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < steps; i++) {
+            if (i > 0) {
+                sb.append('+');
+            }
+            sb.append(Constants.getActionName(getStep(macro, i)));
+        }
+        return sb.toString();
+    }
+}
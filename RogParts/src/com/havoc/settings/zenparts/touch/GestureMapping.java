@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import java.util.Arrays;
+
+/**
+ * Immutable scan code -> action snapshot. A new instance is built for every settings
+ * update and published with a single volatile write, so readers never observe a
+ * partially applied mapping.
+ */
+final class GestureMapping {
+
+    static final GestureMapping EMPTY = new GestureMapping(new int[0], new int[0], 0);
+
+    private final int[] mActions = new int[Constants.MAX_SCAN_CODE + 1];
+    private final int mVersion;
+
+    GestureMapping(int[] scanCodes, int[] actions, int version) {
+        mVersion = version;
+        Arrays.fill(mActions, -1);
+        if (scanCodes == null || actions == null || scanCodes.length != actions.length) {
+            return;
+        }
+        for (int i = 0; i < scanCodes.length; i++) {
+            final int scanCode = scanCodes[i];
+            if (scanCode < 0 || scanCode > Constants.MAX_SCAN_CODE) {
+                // Not a touchscreen gesture scan code
+                continue;
+            }
+            mActions[scanCode] = actions[i];
+        }
+    }
+
+    /**
+     * Returns the action mapped to scanCode, or -1 if there is none.
+     */
+    int getAction(int scanCode) {
+        if (scanCode < 0 || scanCode > Constants.MAX_SCAN_CODE) {
+            return -1;
+        }
+        return mActions[scanCode];
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+}
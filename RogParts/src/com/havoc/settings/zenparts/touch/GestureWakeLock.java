@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The single wakelock held across a gesture pipeline: from key event, through the
+ * proximity check and queue, to action completion. Every action type has a ceiling
+ * the lock can never outlive, and the lock is dropped as soon as the action is done.
+ *
+ * Actions that hand work off asynchronously (broadcasts to SystemUI or the motor
+ * service, deferred track skips) keep the lock for a short linger after they return.
+ *
+ * Every action argument may also be a GestureMacro: its ceiling is the sum of its
+ * steps' ceilings and its linger the longest of theirs.
+ *
+ * Called from the input thread and the gesture handler, so every method that touches
+ * the lock is synchronized; the underlying lock must not be reference counted.
+ */
+class GestureWakeLock {
+
+    private static final long DEFAULT_CEILING_MS = 500;
+    private static final long LAUNCH_CEILING_MS = 3000;
+    private static final long HANDOFF_LINGER_MS = 500;
+    // Covers a pending coalesced skip in MediaKeyDispatcher
+    static final long TRACK_SKIP_LINGER_MS = Constants.TRACK_SKIP_COALESCE_WINDOW_MS + 100;
+
+    private static final long[] sCeilings = new long[Constants.ACTION_FM_RADIO + 1];
+    private static final long[] sLingers = new long[Constants.ACTION_FM_RADIO + 1];
+
+    static {
+        Arrays.fill(sCeilings, DEFAULT_CEILING_MS);
+        sCeilings[Constants.ACTION_CAMERA] = LAUNCH_CEILING_MS;
+        sCeilings[Constants.ACTION_FLASHLIGHT] = LAUNCH_CEILING_MS;
+        sCeilings[Constants.ACTION_BROWSER] = LAUNCH_CEILING_MS;
+        sCeilings[Constants.ACTION_DIALER] = LAUNCH_CEILING_MS;
+        sCeilings[Constants.ACTION_EMAIL] = LAUNCH_CEILING_MS;
+        sCeilings[Constants.ACTION_MESSAGES] = LAUNCH_CEILING_MS;
+        sCeilings[Constants.ACTION_VOLUME_DOWN] = LAUNCH_CEILING_MS;
+        sCeilings[Constants.ACTION_VOLUME_UP] = LAUNCH_CEILING_MS;
+        sCeilings[Constants.ACTION_CAMERA_MOTOR] = LAUNCH_CEILING_MS;
+        sCeilings[Constants.ACTION_FM_RADIO] = LAUNCH_CEILING_MS;
+
+        sLingers[Constants.ACTION_CAMERA] = HANDOFF_LINGER_MS;
+        sLingers[Constants.ACTION_CAMERA_MOTOR] = HANDOFF_LINGER_MS;
+        sLingers[Constants.ACTION_PREVIOUS_TRACK] = TRACK_SKIP_LINGER_MS;
+        sLingers[Constants.ACTION_NEXT_TRACK] = TRACK_SKIP_LINGER_MS;
+    }
+
+    interface Lock {
+        /** Hold the lock, replacing any earlier timeout with timeoutMs from now. */
+        void acquire(long timeoutMs);
+
+        void release();
+
+        /** False once released or timed out. */
+        boolean isHeld();
+    }
+
+    private final Lock mWakeLock;
+    private final GestureEngine.Clock mClock;
+
+    private final LatencyHistogram mHeldTime = new LatencyHistogram("held");
+    private final AtomicLong mAcquisitions = new AtomicLong();
+    private final AtomicLong mEarlyReleases = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+
+    // The pipeline started at mAcquiredNs hasn't ended yet; it times out at mDeadlineNs
+    private boolean mInPipeline;
+    private long mAcquiredNs;
+    private long mDeadlineNs;
+
+    GestureWakeLock(Lock wakeLock, GestureEngine.Clock clock) {
+        mWakeLock = wakeLock;
+        mClock = clock;
+    }
+
+    /**
+     * Start of a pipeline: hold the lock for at most timeoutMs until an action starts.
+     */
+    synchronized void acquire(long timeoutMs) {
+        final long now = mClock.nanoTime();
+        if (!mInPipeline || !mWakeLock.isHeld()) {
+            onTimedOut();
+            mInPipeline = true;
+            mAcquiredNs = now;
+            mAcquisitions.incrementAndGet();
+        }
+        mDeadlineNs = now + timeoutMs * 1000000L;
+        mWakeLock.acquire(timeoutMs);
+    }
+
+    /**
+     * Extend the lock up to the ceiling of the action about to run.
+     */
+    void onActionStart(int action) {
+        acquire(getCeiling(action));
+    }
+
+    /**
+     * Release the lock once the action is done, after its linger if any.
+     */
+    synchronized void onActionComplete(int action) {
+        long linger = 0;
+        for (int i = 0; i < GestureMacro.MAX_STEPS; i++) {
+            final int step = GestureMacro.getStep(action, i);
+            if (step == 0) {
+                break;
+            }
+            if (step < sLingers.length) {
+                linger = Math.max(linger, sLingers[step]);
+            }
+        }
+        if (linger > 0) {
+            final long now = mClock.nanoTime();
+            if (mInPipeline && now < mDeadlineNs) {
+                mInPipeline = false;
+                mHeldTime.record(now - mAcquiredNs + linger * 1000000L);
+            } else {
+                onTimedOut();
+            }
+            mWakeLock.acquire(linger);
+            return;
+        }
+        release();
+    }
+
+    /**
+     * Drop the lock now, e.g. when the action is done or the proximity check rejects.
+     * Counted as an early release only if the pipeline's timeout hasn't fired yet.
+     */
+    synchronized void release() {
+        if (!mWakeLock.isHeld()) {
+            onTimedOut();
+            return;
+        }
+        mWakeLock.release();
+        if (!mInPipeline) {
+            // Cut a linger short
+            return;
+        }
+        final long now = mClock.nanoTime();
+        if (now < mDeadlineNs) {
+            mInPipeline = false;
+            mEarlyReleases.incrementAndGet();
+            mHeldTime.record(now - mAcquiredNs);
+        } else {
+            onTimedOut();
+        }
+    }
+
+    long getEarlyReleaseCount() {
+        return mEarlyReleases.get();
+    }
+
+    long getTimeoutCount() {
+        return mTimeouts.get();
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Gesture wakelock:");
+        pw.println("  acquisitions=" + mAcquisitions.get()
+                + " early releases=" + mEarlyReleases.get()
+                + " timeouts=" + mTimeouts.get());
+        mHeldTime.dump(pw, "  ");
+    }
+
+    /**
+     * The lock of the current pipeline, if any, ran into its timeout before being released.
+     */
+    private void onTimedOut() {
+        if (!mInPipeline) {
+            return;
+        }
+        mInPipeline = false;
+        mTimeouts.incrementAndGet();
+        mHeldTime.record(mDeadlineNs - mAcquiredNs);
+    }
+
+    private static long getCeiling(int action) {
+        long ceiling = 0;
+        for (int i = 0; i < GestureMacro.MAX_STEPS; i++) {
+            final int step = GestureMacro.getStep(action, i);
+            if (step == 0) {
+                break;
+            }
+            ceiling += step < sCeilings.length ? sCeilings[step] : DEFAULT_CEILING_MS;
+        }
+        return ceiling > 0 ? ceiling : DEFAULT_CEILING_MS;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, lock-free latency histogram with power-of-two microsecond buckets.
+ * Bucket 0 holds samples below 1 us, bucket i holds [2^(i-1), 2^i) us and the last
+ * bucket collects everything above.
+ */
+class LatencyHistogram {
+
+    private static final int BUCKET_COUNT = 24;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    void record(long durationNs) {
+        final long us = durationNs > 0 ? durationNs / 1000 : 0;
+        final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(us));
+        mBuckets.incrementAndGet(bucket);
+        mCount.incrementAndGet();
+        mSumUs.addAndGet(us);
+
+        long max = mMaxUs.get();
+        while (us > max && !mMaxUs.compareAndSet(max, us)) {
+            max = mMaxUs.get();
+        }
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * Upper bound in microseconds of the bucket holding the given percentile.
+     */
+    long getPercentileUs(int percentile) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long target = (count * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= target) {
+                return 1L << i;
+            }
+        }
+        return mMaxUs.get();
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        final long count = mCount.get();
+        if (count == 0) {
+            return;
+        }
+        pw.println(prefix + mName + ": count=" + count
+                + " avg=" + (mSumUs.get() / count) + "us"
+                + " p50<=" + getPercentileUs(50) + "us"
+                + " p90<=" + getPercentileUs(90) + "us"
+                + " p99<=" + getPercentileUs(99) + "us"
+                + " max=" + mMaxUs.get() + "us");
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import android.app.role.RoleManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.util.Log;
+
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Launch intents for the gesture actions that start an app, resolved ahead of time on
+ * the background thread and rebuilt whenever packages or default-app roles change.
+ */
+class LaunchTargetCache {
+
+    private static final String TAG = "LaunchTargetCache";
+    private static final boolean DEBUG = false;
+
+    static final int TARGET_BROWSER = 0;
+    static final int TARGET_EMAIL = 1;
+    static final int TARGET_MESSAGES = 2;
+    static final int TARGET_FM_RADIO = 3;
+    private static final int TARGET_COUNT = 4;
+
+    private static final String FM_RADIO_PACKAGE = "com.asus.fmradio";
+
+    private final Context mContext;
+    private final PackageManager mPackageManager;
+    private final Handler mBgHandler;
+
+    // Stored in a slot when nothing can handle the target, so the miss isn't resolved again
+    private static final Intent NO_TARGET = new Intent();
+
+    // Replaced as a whole, under this, on every change; a null slot means "not resolved yet"
+    private volatile Intent[] mTargets = new Intent[TARGET_COUNT];
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mRebuilds = new AtomicLong();
+
+    private final Runnable mRebuildRunnable = this::rebuild;
+
+    private final BroadcastReceiver mInvalidateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            scheduleRebuild();
+        }
+    };
+
+    LaunchTargetCache(Context context) {
+        mContext = context;
+        mPackageManager = context.getPackageManager();
+        mBgHandler = BackgroundThread.getHandler();
+
+        final IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiverAsUser(mInvalidateReceiver, UserHandle.ALL,
+                packageFilter, null, mBgHandler);
+        mContext.registerReceiverAsUser(mInvalidateReceiver, UserHandle.ALL,
+                new IntentFilter(Intent.ACTION_USER_SWITCHED), null, mBgHandler);
+
+        final RoleManager roleManager = mContext.getSystemService(RoleManager.class);
+        if (roleManager != null) {
+            roleManager.addOnRoleHoldersChangedListenerAsUser(mBgHandler::post,
+                    (roleName, user) -> scheduleRebuild(), UserHandle.ALL);
+        }
+
+        scheduleRebuild();
+    }
+
+    /**
+     * Returns a fresh copy of the cached launch intent, or null if nothing can handle it.
+     */
+    Intent getLaunchIntent(int target) {
+        final Intent[] targets = mTargets;
+        Intent intent = targets[target];
+        if (intent != null) {
+            mHits.incrementAndGet();
+        } else {
+            // Not built yet, resolve it on the caller's thread and keep the result,
+            // found or not, until the next rebuild
+            mMisses.incrementAndGet();
+            intent = resolve(target);
+            if (intent == null) {
+                intent = NO_TARGET;
+            }
+            publish(targets, target, intent);
+        }
+        return intent != NO_TARGET ? new Intent(intent) : null;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("LaunchTargetCache:");
+        final Intent[] targets = mTargets;
+        for (int i = 0; i < targets.length; i++) {
+            final String state;
+            if (targets[i] == null) {
+                state = "unresolved";
+            } else if (targets[i] == NO_TARGET) {
+                state = "none";
+            } else {
+                state = String.valueOf(targets[i].getComponent());
+            }
+            pw.println("  target " + i + ": " + state);
+        }
+        pw.println("  hits=" + mHits.get() + " misses=" + mMisses.get()
+                + " rebuilds=" + mRebuilds.get());
+    }
+
+    private void scheduleRebuild() {
+        // Coalesce bursts of package broadcasts, e.g. during app updates
+        mBgHandler.removeCallbacks(mRebuildRunnable);
+        mBgHandler.post(mRebuildRunnable);
+    }
+
+    private void rebuild() {
+        final Intent[] targets = new Intent[TARGET_COUNT];
+        for (int i = 0; i < TARGET_COUNT; i++) {
+            final Intent intent = resolve(i);
+            targets[i] = intent != null ? intent : NO_TARGET;
+        }
+        synchronized (this) {
+            mTargets = targets;
+        }
+        mRebuilds.incrementAndGet();
+        if (DEBUG) Log.d(TAG, "Rebuilt launch targets");
+    }
+
+    private synchronized void publish(Intent[] resolvedFrom, int target, Intent intent) {
+        // A rebuild that finished meanwhile already holds a newer answer
+        if (mTargets != resolvedFrom) {
+            return;
+        }
+        final Intent[] targets = resolvedFrom.clone();
+        targets[target] = intent;
+        mTargets = targets;
+    }
+
+    private Intent resolve(int target) {
+        switch (target) {
+            case TARGET_BROWSER:
+                return getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("http:")));
+            case TARGET_EMAIL:
+                return getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("mailto:")));
+            case TARGET_MESSAGES:
+                return getLaunchableIntent(new Intent(Intent.ACTION_VIEW, Uri.parse("sms:")));
+            case TARGET_FM_RADIO:
+                return mPackageManager.getLaunchIntentForPackage(FM_RADIO_PACKAGE);
+            default:
+                return null;
+        }
+    }
+
+    private Intent getLaunchableIntent(Intent intent) {
+        List<ResolveInfo> resInfo = mPackageManager.queryIntentActivities(intent, 0);
+        if (resInfo.isEmpty()) {
+            return null;
+        }
+        return mPackageManager.getLaunchIntentForPackage(resInfo.get(0).activityInfo.packageName);
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import android.content.Context;
+import android.media.session.MediaController;
+import android.media.session.MediaSession;
+import android.media.session.MediaSessionLegacyHelper;
+import android.media.session.MediaSessionManager;
+import android.media.session.PlaybackState;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Sends media key gestures to the active media session.
+ *
+ * A track gesture is sent right away unless another skip went out less than
+ * COALESCE_WINDOW_MS ago. Gestures inside that window are summed and flushed as a
+ * single skip-by-N when the window closes, on the session queue when the session
+ * exposes one, or as N key presses otherwise. A play/pause gesture flushes pending
+ * skips first, so keys always reach the session in the order they were drawn.
+ *
+ * Not thread safe: must only be used from the handler thread it is given.
+ */
+class MediaKeyDispatcher {
+
+    private static final String TAG = "MediaKeyDispatcher";
+    private static final boolean DEBUG = false;
+
+    private static final long COALESCE_WINDOW_MS = Constants.TRACK_SKIP_COALESCE_WINDOW_MS;
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    private MediaSessionLegacyHelper mHelper;
+
+    private long mLastSkipMs = -COALESCE_WINDOW_MS;
+    private int mPendingSkip;
+    private boolean mFlushScheduled;
+
+    // Written on the handler thread only, read by dump()
+    private volatile long mRequests;
+    private volatile long mDispatches;
+
+    private final Runnable mFlushRunnable = this::flushPendingSkip;
+
+    MediaKeyDispatcher(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    void playPause() {
+        mRequests++;
+        if (mFlushScheduled) {
+            // Don't let play/pause overtake skips drawn before it
+            mHandler.removeCallbacks(mFlushRunnable);
+            flushPendingSkip();
+        }
+        sendKey(KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+    }
+
+    void nextTrack() {
+        onTrackGesture(1);
+    }
+
+    void previousTrack() {
+        onTrackGesture(-1);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Media key dispatch:");
+        pw.println("  requests=" + mRequests + " dispatches=" + mDispatches
+                + " saved=" + Math.max(0, mRequests - mDispatches));
+    }
+
+    private void onTrackGesture(int direction) {
+        mRequests++;
+        final long sinceSkipMs = SystemClock.uptimeMillis() - mLastSkipMs;
+        if (!mFlushScheduled && sinceSkipMs >= COALESCE_WINDOW_MS) {
+            // Leading edge: nothing went out recently, send it now
+            skip(direction);
+            return;
+        }
+
+        mPendingSkip += direction;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, COALESCE_WINDOW_MS - sinceSkipMs);
+        }
+    }
+
+    private void flushPendingSkip() {
+        mFlushScheduled = false;
+        final int skip = mPendingSkip;
+        mPendingSkip = 0;
+        if (skip == 0) {
+            // next and previous cancelled each other out
+            return;
+        }
+        skip(skip);
+    }
+
+    private void skip(int skip) {
+        mLastSkipMs = SystemClock.uptimeMillis();
+        if (skip == 1 || skip == -1 || !skipOnQueue(skip)) {
+            sendSkipKeys(skip);
+        }
+    }
+
+    private boolean skipOnQueue(int skip) {
+        final MediaSessionManager msm = mContext.getSystemService(MediaSessionManager.class);
+        if (msm == null) {
+            return false;
+        }
+        final List<MediaController> controllers = msm.getActiveSessions(null);
+        if (controllers == null || controllers.isEmpty()) {
+            return false;
+        }
+
+        final MediaController controller = controllers.get(0);
+        final List<MediaSession.QueueItem> queue = controller.getQueue();
+        final PlaybackState state = controller.getPlaybackState();
+        if (queue == null || queue.isEmpty() || state == null) {
+            return false;
+        }
+
+        final long activeId = state.getActiveQueueItemId();
+        for (int i = 0; i < queue.size(); i++) {
+            if (queue.get(i).getQueueId() == activeId) {
+                final int target = Math.max(0, Math.min(queue.size() - 1, i + skip));
+                if (DEBUG) Log.d(TAG, "Skipping by " + skip + " to queue index " + target);
+                controller.getTransportControls().skipToQueueItem(
+                        queue.get(target).getQueueId());
+                mDispatches++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendSkipKeys(int skip) {
+        final int keyCode = skip > 0
+                ? KeyEvent.KEYCODE_MEDIA_NEXT : KeyEvent.KEYCODE_MEDIA_PREVIOUS;
+        for (int i = Math.abs(skip); i > 0; i--) {
+            sendKey(keyCode);
+        }
+    }
+
+    private void sendKey(int keyCode) {
+        if (mHelper == null) {
+            mHelper = MediaSessionLegacyHelper.getHelper(mContext);
+            if (mHelper == null) {
+                Log.w(TAG, "Unable to send media key event");
+                return;
+            }
+        }
+        // Built per press so sessions see the actual down and event times
+        final long now = SystemClock.uptimeMillis();
+        final KeyEvent down = new KeyEvent(now, now, KeyEvent.ACTION_DOWN, keyCode, 0);
+        mHelper.sendMediaButtonEvent(down, true);
+        mHelper.sendMediaButtonEvent(KeyEvent.changeAction(down, KeyEvent.ACTION_UP), true);
+        mDispatches++;
+    }
+}
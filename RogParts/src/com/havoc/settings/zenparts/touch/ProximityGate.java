@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Keeps one proximity listener registered while the screen is off and remembers the
+ * latest near/far sample, so gestures can be admitted without waiting for the sensor.
+ *
+ * The proximity sensor is on-change: the cached state stays valid for as long as the
+ * listener remains registered once the first sample after registration has arrived,
+ * however long ago that sample was taken, so the age of the sample is never checked.
+ * Until then the state is unknown and callers fall back to {@link #requestSample}.
+ */
+class ProximityGate implements SensorEventListener, GestureEngine.ProximitySource {
+
+    private static final String TAG = "ProximityGate";
+    private static final boolean DEBUG = false;
+
+    interface Callback {
+        void onProximityResolved(boolean far);
+    }
+
+    private final SensorManager mSensorManager;
+    private final Sensor mSensor;
+    private final Handler mHandler;
+
+    private boolean mArmed;
+    private boolean mRegistered;
+
+    private volatile boolean mHasSample;
+    private volatile boolean mFar;
+
+    private Callback mPendingCallback;
+
+    private final Runnable mTimeoutRunnable = () -> {
+        if (DEBUG) Log.d(TAG, "Timed out waiting for proximity sample");
+        mPendingCallback = null;
+        if (!mArmed) {
+            unregister();
+        }
+    };
+
+    ProximityGate(Context context, Handler handler) {
+        mSensorManager = context.getSystemService(SensorManager.class);
+        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+        mHandler = handler;
+    }
+
+    boolean isAvailable() {
+        return mSensor != null;
+    }
+
+    /**
+     * Called when the screen turns off: keep the listener registered until {@link #disarm}.
+     */
+    void arm() {
+        mHandler.post(() -> {
+            mArmed = true;
+            register();
+        });
+    }
+
+    /**
+     * Called when the screen turns on.
+     */
+    void disarm() {
+        mHandler.post(() -> {
+            mArmed = false;
+            if (mPendingCallback == null) {
+                unregister();
+            }
+        });
+    }
+
+    @Override
+    public int getVerdict() {
+        if (!mHasSample) {
+            return GestureEngine.VERDICT_UNKNOWN;
+        }
+        return mFar ? GestureEngine.VERDICT_FAR : GestureEngine.VERDICT_NEAR;
+    }
+
+    /**
+     * Wait at most timeoutMs for the next proximity sample and report it through callback.
+     * The callback is dropped on timeout. Must be called on the handler thread, with the
+     * caller holding a wakelock for the duration of the wait.
+     */
+    void requestSample(Callback callback, long timeoutMs) {
+        mPendingCallback = callback;
+        register();
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.postDelayed(mTimeoutRunnable, timeoutMs);
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        mFar = event.values[0] >= mSensor.getMaximumRange();
+        mHasSample = true;
+
+        final Callback callback = mPendingCallback;
+        if (callback == null) {
+            return;
+        }
+        mPendingCallback = null;
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (!mArmed) {
+            unregister();
+        }
+        callback.onProximityResolved(mFar);
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        // Ignore
+    }
+
+    private void register() {
+        if (mRegistered) {
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Registering proximity listener");
+        // State is unknown until the sensor reports the first sample for this registration
+        mHasSample = false;
+        mRegistered = mSensorManager.registerListener(this, mSensor,
+                SensorManager.SENSOR_DELAY_FASTEST, mHandler);
+    }
+
+    private void unregister() {
+        if (!mRegistered) {
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "Unregistering proximity listener");
+        mSensorManager.unregisterListener(this, mSensor);
+        mRegistered = false;
+        mHasSample = false;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in speculative display wake. When the DOWN of a gesture mapped to a waking
+ * action arrives, the panel is powered on right away instead of after UP, admission
+ * and dispatch. If the gesture is not dispatched after all (UP never arrives, the
+ * proximity gate rejects it, or it is dropped as busy) the display is put back to
+ * sleep, provided it was this class that woke it.
+ *
+ * Each start() hands out a token naming that gesture's wake; commit(), rollback() and
+ * abandon() only act on the wake their token names, so one gesture can't undo or claim
+ * another's. start() and abandon() may be called from any thread; the rest of the work
+ * happens on the gesture handler, where commit() and rollback() must be called.
+ */
+class SpeculativeWake {
+
+    /** Token of a gesture that started no wake; never matches one. */
+    static final int NO_WAKE = 0;
+
+    private static final String WAKEUP_REASON = "touchscreen-gesture-speculative-wakeup";
+    // UP normally follows DOWN within a few milliseconds
+    private static final long ROLLBACK_TIMEOUT_MS = 1000;
+
+    private static final boolean[] sWaking = new boolean[Constants.ACTION_FM_RADIO + 1];
+
+    static {
+        sWaking[Constants.ACTION_CAMERA] = true;
+        sWaking[Constants.ACTION_BROWSER] = true;
+        sWaking[Constants.ACTION_DIALER] = true;
+        sWaking[Constants.ACTION_EMAIL] = true;
+        sWaking[Constants.ACTION_MESSAGES] = true;
+        sWaking[Constants.ACTION_CAMERA_MOTOR] = true;
+        sWaking[Constants.ACTION_FM_RADIO] = true;
+    }
+
+    interface Display {
+        boolean isInteractive();
+
+        void wakeUp(String reason);
+
+        void goToSleep();
+    }
+
+    /** The gesture handler. */
+    interface Scheduler {
+        void post(Runnable r);
+
+        void postDelayed(Runnable r, long delayMs);
+
+        void removeCallbacks(Runnable r);
+    }
+
+    interface Setting {
+        boolean isEnabled();
+    }
+
+    private final Display mDisplay;
+    private final Setting mSetting;
+    private final Scheduler mHandler;
+    private final GestureEngine.Clock mClock;
+
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    // Handler thread only; mToken names the active wake
+    private boolean mActive;
+    private int mToken;
+    private boolean mWoke;
+    private int mAction;
+    private long mStartNs;
+
+    // Head start of the display wake over dispatch, per first step
+    private final LatencyHistogram[] mSaved = new LatencyHistogram[Constants.ACTION_FM_RADIO + 1];
+    private volatile long mStarted;
+    private volatile long mCommitted;
+    private volatile long mRolledBack;
+
+    private final Runnable mTimeoutRunnable = () -> rollback(mToken);
+
+    SpeculativeWake(Display display, Setting setting, Scheduler handler,
+            GestureEngine.Clock clock) {
+        mDisplay = display;
+        mSetting = setting;
+        mHandler = handler;
+        mClock = clock;
+        for (int i = 0; i < sWaking.length; i++) {
+            if (sWaking[i]) {
+                mSaved[i] = new LatencyHistogram(Constants.getActionName(i));
+            }
+        }
+    }
+
+    /**
+     * Returns true if any step of the macro powers the display on.
+     */
+    static boolean isWaking(int macro) {
+        for (int i = 0; i < GestureMacro.MAX_STEPS; i++) {
+            final int step = GestureMacro.getStep(macro, i);
+            if (step == 0) {
+                break;
+            }
+            if (step < sWaking.length && sWaking[step]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The DOWN of a gesture mapped to macro arrived. Returns the token of the wake it
+     * started, or NO_WAKE.
+     */
+    int start(int macro) {
+        if (!isWaking(macro) || !mSetting.isEnabled()) {
+            return NO_WAKE;
+        }
+        int token;
+        do {
+            token = mGeneration.incrementAndGet();
+        } while (token == NO_WAKE);
+        final int startToken = token;
+        final long startNs = mClock.nanoTime();
+        mHandler.post(() -> begin(startToken, macro, startNs));
+        return token;
+    }
+
+    /**
+     * The gesture that got token from start() was dropped before dispatch.
+     */
+    void abandon(int token) {
+        if (token != NO_WAKE) {
+            mHandler.post(() -> rollback(token));
+        }
+    }
+
+    /**
+     * The gesture is being dispatched; keep the display on and account the head start.
+     */
+    void commit(int token, long dispatchNs) {
+        if (!isActive(token)) {
+            return;
+        }
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mActive = false;
+        mCommitted++;
+        if (mWoke) {
+            final int step = GestureMacro.getStep(mAction, 0);
+            final LatencyHistogram saved = step < mSaved.length ? mSaved[step] : null;
+            if (saved != null) {
+                saved.record(dispatchNs - mStartNs);
+            }
+        }
+    }
+
+    /**
+     * The gesture will not be dispatched; undo the wake if it was ours.
+     */
+    void rollback(int token) {
+        if (!isActive(token)) {
+            return;
+        }
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mActive = false;
+        mRolledBack++;
+        if (mWoke && mDisplay.isInteractive()) {
+            mDisplay.goToSleep();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println("Speculative wake:");
+        pw.println("  started=" + mStarted + " committed=" + mCommitted
+                + " rolled back=" + mRolledBack);
+        for (LatencyHistogram saved : mSaved) {
+            if (saved != null && saved.getCount() > 0) {
+                saved.dump(pw, "  saved ");
+            }
+        }
+    }
+
+    private boolean isActive(int token) {
+        return mActive && token == mToken;
+    }
+
+    private void begin(int token, int macro, long startNs) {
+        if (mActive) {
+            // A DOWN without its UP is still pending; this gesture gets no wake
+            return;
+        }
+        mActive = true;
+        mToken = token;
+        mAction = macro;
+        mStartNs = startNs;
+        mStarted++;
+        // Never put the display to sleep on rollback unless we were the ones waking it
+        mWoke = !mDisplay.isInteractive();
+        if (mWoke) {
+            mDisplay.wakeUp(WAKEUP_REASON);
+        }
+        mHandler.postDelayed(mTimeoutRunnable, ROLLBACK_TIMEOUT_MS);
+    }
+}
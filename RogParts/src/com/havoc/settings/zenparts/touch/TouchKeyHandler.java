@@ -22,64 +22,105 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
+import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
 import android.Manifest;
 import android.media.AudioManager;
-import android.media.session.MediaSessionLegacyHelper;
-import android.net.Uri;
+import android.os.Environment;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
+import android.os.Process;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.Vibrator;
 import android.provider.Settings;
+import android.util.ArrayMap;
 import android.util.Log;
-import android.util.SparseIntArray;
+import android.util.LogWriter;
 import android.view.KeyEvent;
 
 import com.android.internal.os.AlternativeDeviceKeyHandler;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.havoc.Utils;
-import com.android.internal.util.ArrayUtils;
 
-import java.util.List;
+import com.havoc.settings.rogparts.util.SettingsCache;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TouchKeyHandler implements AlternativeDeviceKeyHandler {
 
     private static final String TAG = TouchKeyHandler.class.getSimpleName();
+    private static final boolean DEBUG = false;
 
     private static final String GESTURE_WAKEUP_REASON = "touchscreen-gesture-wakeup";
     private static final int GESTURE_REQUEST = 0;
-    private static final int GESTURE_WAKELOCK_DURATION = 3000;
     private static final int EVENT_PROCESS_WAKELOCK_DURATION = 500;
-    private static final String KEY_TOUCHSCREEN_HAPTIC_FEEDBACK = "touchscreen_gesture_haptic_feedback";    
+    private static final int PROXIMITY_TIMEOUT_MS = 100;
+    private static final int REAR_CAMERA_RESOLVE_RETRY_MS = 5000;
+    private static final int REAR_CAMERA_RESOLVE_MAX_ATTEMPTS = 6;
+
+    // Loaded into system_server, whose context has no package data directory
+    private static final String PREFS_FILE = "touch_key_handler_prefs.xml";
+    private static final String KEY_REAR_CAMERA_ID = "rear_camera_id";
+
+    private static final String FLIGHT_RECORDER_FILE = "touch_gesture_flight_recorder.csv";
 
     private final Context mContext;
     private final AudioManager mAudioManager;
     private final PowerManager mPowerManager;
-    private final WakeLock mGestureWakeLock;
+    private final GestureWakeLock mGestureWakeLock;
+    private final HandlerThread mGestureThread;
     private final EventHandler mEventHandler;
     private final CameraManager mCameraManager;
-    private final Vibrator mVibrator;
-
-    private final SparseIntArray mActionMapping = new SparseIntArray();
-    private SensorManager mSensorManager;
-    private Sensor mProximitySensor;
-    private WakeLock mProximityWakeLock;
+    private final GestureHaptics mHaptics;
+    private final MediaKeyDispatcher mMediaKeyDispatcher;
+    private final SettingsCache mSettingsCache;
+    private final LaunchTargetCache mLaunchTargetCache;
+    private final SpeculativeWake mSpeculativeWake;
+
+    private final GestureEngine mEngine;
+    private ProximityGate mProximityGate;
+    private volatile int mPendingAction;
+    private volatile int mPendingScanCode;
+    private volatile long mPendingEventTimeNs;
+    private volatile long mPendingEntryNs;
+    private volatile long mPendingRecordId;
+    private volatile int mPendingWakeToken = SpeculativeWake.NO_WAKE;
+    // Input thread only: the speculative wake of the last DOWN, until its UP
+    private int mDownWakeToken = SpeculativeWake.NO_WAKE;
+    private volatile long mGestureDueNs;
+
+    private final LatencyHistogram mQueueWait = new LatencyHistogram("queue wait");
+
+    private final GestureLatencyTracker mLatencyTracker = new GestureLatencyTracker();
+    private final GestureFlightRecorder mFlightRecorder = new GestureFlightRecorder();
+    private final Runnable mProcessEventRunnable = this::processEvent;
+    private final ProximityGate.Callback mProximityCallback = this::onProximityResolved;
+
+    private final Runnable[] mActions = new Runnable[Constants.ACTION_FM_RADIO + 1];
+    // Branches of the running macro not yet done: its sequential chain and every
+    // independent step running on the background thread
+    private final AtomicInteger mMacroBranchesInFlight = new AtomicInteger();
+
+    private final ArrayMap<String, Boolean> mTorchStates = new ArrayMap<>();
+    private final SharedPreferences mDePrefs;
+    private int mRearCameraResolveAttempts;
 
     private String mRearCameraId;
     private boolean mTorchEnabled;
-    private String KeyCode;
+    private boolean mTorchAvailable = true;
 
     private final BroadcastReceiver mUpdateReceiver = new BroadcastReceiver() {
         @Override
@@ -88,11 +129,50 @@ public class TouchKeyHandler implements AlternativeDeviceKeyHandler {
                     Constants.UPDATE_EXTRA_KEYCODE_MAPPING);
             int[] actions = intent.getIntArrayExtra(
                     Constants.UPDATE_EXTRA_ACTION_MAPPING);
-            mActionMapping.clear();
-            if (keycodes != null && actions != null && keycodes.length == actions.length) {
-                for (int i = 0; i < keycodes.length; i++) {
-                    mActionMapping.put(keycodes[i], actions[i]);
-                }
+            mEngine.setMapping(keycodes, actions);
+        }
+    };
+
+    private final BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Intent.ACTION_SCREEN_OFF.equals(intent.getAction())) {
+                mProximityGate.arm();
+            } else if (Intent.ACTION_SCREEN_ON.equals(intent.getAction())) {
+                mProximityGate.disarm();
+            }
+        }
+    };
+
+    private final BroadcastReceiver mDumpReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final PrintWriter pw = new PrintWriter(new LogWriter(Log.INFO, TAG));
+            pw.println("Gesture queue:");
+            mQueueWait.dump(pw, "  ");
+            pw.println("  dropped busy=" + mEngine.getDroppedBusyCount()
+                    + " dropped proximity=" + mEngine.getDroppedProximityCount());
+            pw.println("  mapping version=" + mEngine.getMappingVersion());
+            mLatencyTracker.dump(pw);
+            mGestureWakeLock.dump(pw);
+            mSettingsCache.dump(pw);
+            mLaunchTargetCache.dump(pw);
+            mMediaKeyDispatcher.dump(pw);
+            mSpeculativeWake.dump(pw);
+            pw.flush();
+        }
+    };
+
+    private final BroadcastReceiver mExportReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            final File file = new File(Environment.getDataSystemDirectory(),
+                    FLIGHT_RECORDER_FILE);
+            try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+                mFlightRecorder.writeCsv(writer);
+                Log.i(TAG, "Exported gesture flight recorder to " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to export gesture flight recorder", e);
             }
         }
     };
@@ -103,399 +183,445 @@ public class TouchKeyHandler implements AlternativeDeviceKeyHandler {
         mAudioManager = mContext.getSystemService(AudioManager.class);
 
         mPowerManager = context.getSystemService(PowerManager.class);
-        mGestureWakeLock = mPowerManager.newWakeLock(
+        final PowerManager.WakeLock wakeLock = mPowerManager.newWakeLock(
                 PowerManager.PARTIAL_WAKE_LOCK, "TouchscreenGestureWakeLock");
+        wakeLock.setReferenceCounted(false);
+        mGestureWakeLock = new GestureWakeLock(new GestureWakeLock.Lock() {
+            @Override
+            public void acquire(long timeoutMs) {
+                wakeLock.acquire(timeoutMs);
+            }
+
+            @Override
+            public void release() {
+                wakeLock.release();
+            }
+
+            @Override
+            public boolean isHeld() {
+                return wakeLock.isHeld();
+            }
+        }, System::nanoTime);
 
-        mEventHandler = new EventHandler();
+        mGestureThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mGestureThread.start();
+        mEventHandler = new EventHandler(mGestureThread.getLooper());
+        initActions();
 
         mCameraManager = mContext.getSystemService(CameraManager.class);
+        mDePrefs = mContext.getSharedPreferences(new File(
+                Environment.getDataSystemDeDirectory(UserHandle.USER_SYSTEM), PREFS_FILE),
+                Context.MODE_PRIVATE);
+        // Known before the torch callback is registered, so its initial state is not missed
+        mRearCameraId = mDePrefs.getString(KEY_REAR_CAMERA_ID, null);
         mCameraManager.registerTorchCallback(new TorchModeCallback(), mEventHandler);
+        BackgroundThread.getHandler().post(this::resolveRearCameraId);
+
+        mSettingsCache = SettingsCache.getInstance(context);
+        mHaptics = new GestureHaptics(context.getSystemService(Vibrator.class), mSettingsCache);
+        mLaunchTargetCache = new LaunchTargetCache(context);
+        mMediaKeyDispatcher = new MediaKeyDispatcher(context, mEventHandler);
+        mSpeculativeWake = new SpeculativeWake(mSpeculativeDisplay,
+                () -> mSettingsCache.getSystemInt(
+                        SettingsCache.KEY_TOUCHSCREEN_SPECULATIVE_WAKE, 0) != 0,
+                mSpeculativeScheduler, System::nanoTime);
+
+        final ProximityGate proximityGate = new ProximityGate(context, mEventHandler);
+        if (proximityGate.isAvailable()) {
+            mProximityGate = proximityGate;
+            final IntentFilter screenStateFilter = new IntentFilter();
+            screenStateFilter.addAction(Intent.ACTION_SCREEN_ON);
+            screenStateFilter.addAction(Intent.ACTION_SCREEN_OFF);
+            mContext.registerReceiver(mScreenStateReceiver, screenStateFilter);
+        }
+        mEngine = new GestureEngine(System::nanoTime, mProximityGate,
+                this::hasSetupCompleted, mActionSink, mFlightRecorder);
 
-        mVibrator = context.getSystemService(Vibrator.class);
-
-        if (mProximitySensor != null) {
-            mSensorManager = context.getSystemService(SensorManager.class);
-            mProximitySensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
-            mProximityWakeLock = mPowerManager.newWakeLock(
-                    PowerManager.PARTIAL_WAKE_LOCK, "TouchscreenGestureProximityWakeLock");
-        }
         mContext.registerReceiver(mUpdateReceiver,
                 new IntentFilter(Constants.UPDATE_PREFS_ACTION));
+        mContext.registerReceiver(mDumpReceiver,
+                new IntentFilter(Constants.DUMP_STATS_ACTION),
+                Manifest.permission.DUMP, null);
+        mContext.registerReceiver(mExportReceiver,
+                new IntentFilter(Constants.EXPORT_FLIGHT_RECORDER_ACTION),
+                Manifest.permission.DUMP, BackgroundThread.getHandler());
     }
 
     private class TorchModeCallback extends CameraManager.TorchCallback {
         @Override
         public void onTorchModeChanged(String cameraId, boolean enabled) {
-            if (!cameraId.equals(mRearCameraId)) return;
-            mTorchEnabled = enabled;
+            synchronized (mTorchStates) {
+                mTorchStates.put(cameraId, enabled);
+                if (!cameraId.equals(mRearCameraId)) return;
+                mTorchEnabled = enabled;
+                mTorchAvailable = true;
+            }
         }
 
         @Override
         public void onTorchModeUnavailable(String cameraId) {
-            if (!cameraId.equals(mRearCameraId)) return;
-            mTorchEnabled = false;
+            synchronized (mTorchStates) {
+                mTorchStates.put(cameraId, false);
+                if (!cameraId.equals(mRearCameraId)) return;
+                mTorchEnabled = false;
+                mTorchAvailable = false;
+            }
         }
     }
 
+    private void initActions() {
+        mActions[Constants.ACTION_BACK] = this::back;
+        mActions[Constants.ACTION_HOME] = this::home;
+        mActions[Constants.ACTION_RECENTS] = this::recents;
+        mActions[Constants.ACTION_UP] = this::up;
+        mActions[Constants.ACTION_DOWN] = this::down;
+        mActions[Constants.ACTION_LEFT] = this::left;
+        mActions[Constants.ACTION_RIGHT] = this::right;
+        mActions[Constants.ACTION_ASSISTANT] = this::assistant;
+        mActions[Constants.ACTION_WAKE_UP] = this::wakeup;
+        mActions[Constants.ACTION_SCREENSHOT] = this::screenshot;
+        mActions[Constants.ACTION_SCREEN_OFF] = this::screenOff;
+        mActions[Constants.ACTION_CAMERA] = this::launchCamera;
+        mActions[Constants.ACTION_FLASHLIGHT] = this::toggleFlashlight;
+        mActions[Constants.ACTION_BROWSER] = this::launchBrowser;
+        mActions[Constants.ACTION_DIALER] = this::launchDialer;
+        mActions[Constants.ACTION_EMAIL] = this::launchEmail;
+        mActions[Constants.ACTION_MESSAGES] = this::launchMessages;
+        mActions[Constants.ACTION_PLAY_PAUSE_MUSIC] = this::playPauseMusic;
+        mActions[Constants.ACTION_PREVIOUS_TRACK] = this::previousTrack;
+        mActions[Constants.ACTION_NEXT_TRACK] = this::nextTrack;
+        mActions[Constants.ACTION_VOLUME_DOWN] = this::volumeDown;
+        mActions[Constants.ACTION_VOLUME_UP] = this::volumeUp;
+        mActions[Constants.ACTION_CAMERA_MOTOR] = this::cameraMotor;
+        mActions[Constants.ACTION_FM_RADIO] = this::fmRadio;
+    }
+
     public KeyEvent handleKeyEvent(final KeyEvent event) {
-        final int action = mActionMapping.get(event.getScanCode(), -1);
-        if (action < 0 || event.getAction() != KeyEvent.ACTION_UP || !hasSetupCompleted()) {
-            Log.d(TAG, String.valueOf(event));
-            if((String.valueOf(event).contains("scanCode=46")) || (String.valueOf(event).contains("scanCode=47")) || (String.valueOf(event).contains("scanCode=44"))) {
-                KeyCode = "TouchScreen";
-            }            
-            Log.d(TAG, KeyCode);
-            return event;
-        }
-
-        if (action != 0 && !mEventHandler.hasMessages(GESTURE_REQUEST)) {
-            final Message msg = getMessageForAction(action);
-            if (mProximitySensor != null) {
-                mGestureWakeLock.acquire(2 * 100);
-                mEventHandler.sendMessageDelayed(msg, 100);
-                processEvent(action);
-            } else {
+        if (mEngine.onKeyEvent(event.getScanCode(),
+                event.getAction() == KeyEvent.ACTION_UP, event.getEventTime())) {
+            return null;
+        }
+        if (DEBUG) Log.d(TAG, String.valueOf(event));
+        return event;
+    }
+
+    private final GestureEngine.ActionSink mActionSink = new GestureEngine.ActionSink() {
+        @Override
+        public boolean isGestureQueued() {
+            return mEventHandler.hasMessages(GESTURE_REQUEST)
+                    || mMacroBranchesInFlight.get() > 0;
+        }
+
+        @Override
+        public void dispatch(int action, int scanCode, long eventTimeNs, long entryNs,
+                long recordId) {
+            setPendingGesture(action, scanCode, eventTimeNs, entryNs, recordId);
+            mGestureWakeLock.acquire(EVENT_PROCESS_WAKELOCK_DURATION);
+            sendGestureMessage(action, 0);
+        }
+
+        @Override
+        public void dispatchAfterProximityCheck(int action, int scanCode, long eventTimeNs,
+                long entryNs, long recordId) {
+            setPendingGesture(action, scanCode, eventTimeNs, entryNs, recordId);
+            mGestureWakeLock.acquire(2 * PROXIMITY_TIMEOUT_MS);
+            sendGestureMessage(action, PROXIMITY_TIMEOUT_MS);
+            mEventHandler.post(mProcessEventRunnable);
+        }
+
+        @Override
+        public void onGestureDown(int action) {
+            mDownWakeToken = mSpeculativeWake.start(action);
+            if (mDownWakeToken != SpeculativeWake.NO_WAKE) {
                 mGestureWakeLock.acquire(EVENT_PROCESS_WAKELOCK_DURATION);
-                mEventHandler.sendMessage(msg);
             }
         }
 
-        return null;
+        @Override
+        public void onGestureAbandoned() {
+            mSpeculativeWake.abandon(mDownWakeToken);
+            mDownWakeToken = SpeculativeWake.NO_WAKE;
+        }
+    };
+
+    private final SpeculativeWake.Display mSpeculativeDisplay = new SpeculativeWake.Display() {
+        @Override
+        public boolean isInteractive() {
+            return mPowerManager.isInteractive();
+        }
+
+        @Override
+        public void wakeUp(String reason) {
+            mPowerManager.wakeUp(SystemClock.uptimeMillis(), reason);
+        }
+
+        @Override
+        public void goToSleep() {
+            mPowerManager.goToSleep(SystemClock.uptimeMillis());
+        }
+    };
+
+    private final SpeculativeWake.Scheduler mSpeculativeScheduler =
+            new SpeculativeWake.Scheduler() {
+        @Override
+        public void post(Runnable r) {
+            mEventHandler.post(r);
+        }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMs) {
+            mEventHandler.postDelayed(r, delayMs);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            mEventHandler.removeCallbacks(r);
+        }
+    };
+
+    private void setPendingGesture(int action, int scanCode, long eventTimeNs, long entryNs,
+            long recordId) {
+        mPendingAction = action;
+        mPendingRecordId = recordId;
+        mPendingScanCode = scanCode;
+        mPendingEventTimeNs = eventTimeNs;
+        mPendingEntryNs = entryNs;
+        mPendingWakeToken = mDownWakeToken;
+        mDownWakeToken = SpeculativeWake.NO_WAKE;
     }
 
     private boolean hasSetupCompleted() {
-        return Settings.Secure.getInt(mContext.getContentResolver(),
-                Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
+        return mSettingsCache.getSecureInt(Settings.Secure.USER_SETUP_COMPLETE, 0) != 0;
     }
 
-    private void processEvent(final int action) {
-        mProximityWakeLock.acquire();
-        mSensorManager.registerListener(new SensorEventListener() {
-            @Override
-            public void onSensorChanged(SensorEvent event) {
-                mProximityWakeLock.release();
-                mSensorManager.unregisterListener(this);
-                if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-                    // The sensor took too long; ignoring
-                    return;
-                }
-                mEventHandler.removeMessages(GESTURE_REQUEST);
-                if (event.values[0] == mProximitySensor.getMaximumRange()) {
-                    Message msg = getMessageForAction(action);
-                    mEventHandler.sendMessage(msg);
-                }
-            }
-
-            @Override
-            public void onAccuracyChanged(Sensor sensor, int accuracy) {
-                // Ignore
-            }
+    private void processEvent() {
+        mProximityGate.requestSample(mProximityCallback, PROXIMITY_TIMEOUT_MS);
+    }
 
-        }, mProximitySensor, SensorManager.SENSOR_DELAY_FASTEST);
+    private void onProximityResolved(boolean far) {
+        if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
+            // The sensor took too long; ignoring
+            return;
+        }
+        mEventHandler.removeMessages(GESTURE_REQUEST);
+        if (far) {
+            sendGestureMessage(mPendingAction, 0);
+        } else {
+            mEngine.onProximityRejected(mPendingRecordId);
+            mSpeculativeWake.rollback(mPendingWakeToken);
+            mGestureWakeLock.release();
+        }
     }
 
-    private Message getMessageForAction(final int action) {
-        Message msg = mEventHandler.obtainMessage(GESTURE_REQUEST);
+    private void sendGestureMessage(final int action, final long delayMs) {
+        final Message msg = mEventHandler.obtainMessage(GESTURE_REQUEST);
         msg.arg1 = action;
-        return msg;
+        mGestureDueNs = System.nanoTime() + delayMs * 1000000L;
+        mEventHandler.sendMessageDelayed(msg, delayMs);
     }
 
     private class EventHandler extends Handler {
+        EventHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(final Message msg) {
-            switch (msg.arg1) {
-                case Constants.ACTION_BACK:
-                    back();
-                    break;
-                case Constants.ACTION_HOME:
-                    home();
-                    break;
-                case Constants.ACTION_RECENTS:
-                    recents();
-                    break;
-                case Constants.ACTION_UP:
-                    up();
-                    break;
-                case Constants.ACTION_DOWN:
-                    down();
-                    break;
-                case Constants.ACTION_LEFT:
-                    left();
-                    break;
-                case Constants.ACTION_RIGHT:
-                    right();
-                    break;
-                case Constants.ACTION_ASSISTANT:
-                    assistant();
-                    break;
-                case Constants.ACTION_WAKE_UP:
-                    wakeup();
-                    break;
-                case Constants.ACTION_SCREENSHOT:
-                    screenshot();
-                    break;
-                case Constants.ACTION_SCREEN_OFF:
-                    screenOff();
-                    break;
-                case Constants.ACTION_CAMERA:
-                    launchCamera();
-                    break;
-                case Constants.ACTION_FLASHLIGHT:
-                    toggleFlashlight();
-                    break;
-                case Constants.ACTION_BROWSER:
-                    launchBrowser();
-                    break;
-                case Constants.ACTION_DIALER:
-                    launchDialer();
-                    break;
-                case Constants.ACTION_EMAIL:
-                    launchEmail();
-                    break;
-                case Constants.ACTION_MESSAGES:
-                    launchMessages();
-                    break;
-                case Constants.ACTION_PLAY_PAUSE_MUSIC:
-                    playPauseMusic();
-                    break;
-                case Constants.ACTION_PREVIOUS_TRACK:
-                    previousTrack();
-                    break;
-                case Constants.ACTION_NEXT_TRACK:
-                    nextTrack();
-                    break;
-                case Constants.ACTION_VOLUME_DOWN:
-                    volumeDown();
-                    break;
-                case Constants.ACTION_VOLUME_UP:
-                    volumeUp();
-                    break;
-                case Constants.ACTION_CAMERA_MOTOR:
-                    cameraMotor();
-                    break;
-                case Constants.ACTION_FM_RADIO:
-                    fmRadio();
-                    break;
+            final long dispatchNs = System.nanoTime();
+            mQueueWait.record(dispatchNs - mGestureDueNs);
+            mFlightRecorder.onDispatched(mPendingRecordId, dispatchNs);
+            final int action = msg.arg1;
+            if (!GestureMacro.isRunnable(action, mActions)) {
+                mSpeculativeWake.rollback(mPendingWakeToken);
+                mGestureWakeLock.release();
+                return;
+            }
+            mSpeculativeWake.commit(mPendingWakeToken, dispatchNs);
+            mGestureWakeLock.onActionStart(action);
+            if (GestureMacro.isMacro(action)) {
+                runMacro(action, dispatchNs);
+            } else {
+                runStep(action, dispatchNs);
+                mGestureWakeLock.onActionComplete(action);
             }
+            if (mEngine.isTouchscreenHaptic()) {
+                mHaptics.perform(GestureMacro.getStep(action, 0));
+            }
+        }
+    }
+
+    /**
+     * Runs the steps of a macro under the wakelock and proximity check of its gesture.
+     * Independent steps are posted to the background thread up front, the others run
+     * here in order, and the wakelock is handed back once every branch is done.
+     */
+    private void runMacro(final int macro, final long dispatchNs) {
+        final int steps = GestureMacro.getStepCount(macro);
+        mMacroBranchesInFlight.set(1);
+        for (int i = 0; i < steps; i++) {
+            final int step = GestureMacro.getStep(macro, i);
+            if (GestureMacro.isIndependent(step)) {
+                mMacroBranchesInFlight.incrementAndGet();
+                BackgroundThread.getHandler().post(() -> {
+                    runStep(step, dispatchNs);
+                    onMacroBranchComplete(macro);
+                });
+            }
+        }
+        for (int i = 0; i < steps; i++) {
+            final int step = GestureMacro.getStep(macro, i);
+            if (!GestureMacro.isIndependent(step)) {
+                runStep(step, dispatchNs);
+            }
+        }
+        onMacroBranchComplete(macro);
+    }
+
+    private void onMacroBranchComplete(int macro) {
+        if (mMacroBranchesInFlight.decrementAndGet() == 0) {
+            mGestureWakeLock.onActionComplete(macro);
+        }
+    }
+
+    private void runStep(int action, long dispatchNs) {
+        final boolean traced = mLatencyTracker.onActionStart(action);
+        mActions[action].run();
+        if (traced) {
+            mLatencyTracker.onActionComplete(action, mPendingScanCode,
+                    mPendingEventTimeNs, mPendingEntryNs, dispatchNs);
         }
     }
 
     private void back() {
         Utils.sendKeycode(KeyEvent.KEYCODE_BACK);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void home() {
         Utils.sendKeycode(KeyEvent.KEYCODE_HOME);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void recents() {
         Utils.sendKeycode(KeyEvent.KEYCODE_APP_SWITCH);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void up() {
         Utils.sendKeycode(KeyEvent.KEYCODE_DPAD_UP);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void down() {
         Utils.sendKeycode(KeyEvent.KEYCODE_DPAD_DOWN);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void left() {
         Utils.sendKeycode(KeyEvent.KEYCODE_DPAD_LEFT);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void right() {
         Utils.sendKeycode(KeyEvent.KEYCODE_DPAD_RIGHT);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void assistant() {
         Utils.sendKeycode(KeyEvent.KEYCODE_ASSIST);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void wakeup() {
         Utils.sendKeycode(KeyEvent.KEYCODE_WAKEUP);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void screenshot() {
         Utils.takeScreenshot(true);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void screenOff() {
         PowerManager pm = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
         pm.goToSleep(SystemClock.uptimeMillis());
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void launchCamera() {
-        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         final Intent intent = new Intent(android.content.Intent.ACTION_SCREEN_CAMERA_GESTURE);
         mContext.sendBroadcastAsUser(intent, UserHandle.CURRENT,
                 Manifest.permission.STATUS_BAR_SERVICE);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void launchBrowser() {
-        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("http:")));
+        final Intent intent = mLaunchTargetCache.getLaunchIntent(
+                LaunchTargetCache.TARGET_BROWSER);
         startActivitySafely(intent);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void launchDialer() {
-        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
         final Intent intent = new Intent(Intent.ACTION_DIAL, null);
         startActivitySafely(intent);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void launchEmail() {
-        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("mailto:")));
+        final Intent intent = mLaunchTargetCache.getLaunchIntent(
+                LaunchTargetCache.TARGET_EMAIL);
         startActivitySafely(intent);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void launchMessages() {
-        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        final Intent intent = getLaunchableIntent(
-                new Intent(Intent.ACTION_VIEW, Uri.parse("sms:")));
+        final Intent intent = mLaunchTargetCache.getLaunchIntent(
+                LaunchTargetCache.TARGET_MESSAGES);
         startActivitySafely(intent);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void toggleFlashlight() {
-        String rearCameraId = getRearCameraId();
-        if (rearCameraId != null) {
-            mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-            try {
-                mCameraManager.setTorchMode(rearCameraId, !mTorchEnabled);
-                mTorchEnabled = !mTorchEnabled;
-            } catch (CameraAccessException e) {
-                // Ignore
+        // May run on the background thread as an independent macro step
+        synchronized (mTorchStates) {
+            String rearCameraId = mRearCameraId;
+            if (rearCameraId == null) {
+                // Background resolution has not finished yet
+                rearCameraId = findRearCameraId();
+                setRearCameraId(rearCameraId);
+            }
+            if (rearCameraId != null && mTorchAvailable) {
+                try {
+                    mCameraManager.setTorchMode(rearCameraId, !mTorchEnabled);
+                    mTorchEnabled = !mTorchEnabled;
+                } catch (CameraAccessException e) {
+                    // Ignore
+                }
             }
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
         }
     }
 
     private void playPauseMusic() {
-        dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
+        mMediaKeyDispatcher.playPause();
     }
 
     private void previousTrack() {
-        dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_PREVIOUS);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
+        mMediaKeyDispatcher.previousTrack();
     }
 
     private void nextTrack() {
-        dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_NEXT);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
+        mMediaKeyDispatcher.nextTrack();
     }
 
     private void volumeDown() {
-        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mAudioManager.adjustStreamVolume(AudioManager.STREAM_MUSIC, AudioManager.ADJUST_LOWER, 0);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void volumeUp() {
-        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mAudioManager.adjustStreamVolume(AudioManager.STREAM_MUSIC, AudioManager.ADJUST_RAISE, 0);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void cameraMotor() {
-        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
         Intent intent = new Intent("com.asus.motorservice.action.WIDGET_BTN_CLICKED");
         intent.setPackage("com.asus.motorservice");
         mContext.sendBroadcast(intent);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
     }
 
     private void fmRadio() {
-        mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
         mPowerManager.wakeUp(SystemClock.uptimeMillis(), GESTURE_WAKEUP_REASON);
-        Intent LaunchIntent = mContext.getPackageManager().getLaunchIntentForPackage("com.asus.fmradio");
-        mContext.startActivity(LaunchIntent);
-        if (KeyCode == "TouchScreen") {
-            doTouchScreenHapticFeedback();
-        }
-    }
-
-    private void dispatchMediaKeyWithWakeLockToMediaSession(final int keycode) {
-        final MediaSessionLegacyHelper helper = MediaSessionLegacyHelper.getHelper(mContext);
-        if (helper == null) {
-            Log.w(TAG, "Unable to send media key event");
-            return;
-        }
-        KeyEvent event = new KeyEvent(SystemClock.uptimeMillis(),
-                SystemClock.uptimeMillis(), KeyEvent.ACTION_DOWN, keycode, 0);
-        helper.sendMediaButtonEvent(event, true);
-        event = KeyEvent.changeAction(event, KeyEvent.ACTION_UP);
-        helper.sendMediaButtonEvent(event, true);
+        final Intent intent = mLaunchTargetCache.getLaunchIntent(
+                LaunchTargetCache.TARGET_FM_RADIO);
+        startActivitySafely(intent);
     }
 
     private void startActivitySafely(final Intent intent) {
@@ -514,44 +640,50 @@ public class TouchKeyHandler implements AlternativeDeviceKeyHandler {
         }
     }
 
-    private void doTouchScreenHapticFeedback() {
-        if (mVibrator == null) {
+    private void resolveRearCameraId() {
+        final String cameraId = findRearCameraId();
+        if (cameraId == null) {
+            // The camera service may not be up yet this early in boot
+            if (++mRearCameraResolveAttempts < REAR_CAMERA_RESOLVE_MAX_ATTEMPTS) {
+                BackgroundThread.getHandler().postDelayed(this::resolveRearCameraId,
+                        REAR_CAMERA_RESOLVE_RETRY_MS);
+            }
             return;
         }
-
-        final boolean enabled = Settings.System.getInt(mContext.getContentResolver(),
-                KEY_TOUCHSCREEN_HAPTIC_FEEDBACK, 1) != 0;
-        if (enabled) {
-            mVibrator.vibrate(50);
+        if (!cameraId.equals(mDePrefs.getString(KEY_REAR_CAMERA_ID, null))) {
+            mDePrefs.edit().putString(KEY_REAR_CAMERA_ID, cameraId).apply();
         }
+        mEventHandler.post(() -> setRearCameraId(cameraId));
     }
 
-    private String getRearCameraId() {
-        if (mRearCameraId == null) {
-            try {
-                for (final String cameraId : mCameraManager.getCameraIdList()) {
-                    final CameraCharacteristics characteristics =
-                            mCameraManager.getCameraCharacteristics(cameraId);
-                    final int orientation = characteristics.get(CameraCharacteristics.LENS_FACING);
-                    if (orientation == CameraCharacteristics.LENS_FACING_BACK) {
-                        mRearCameraId = cameraId;
-                        break;
-                    }
-                }
-            } catch (CameraAccessException e) {
-                // Ignore
+    private void setRearCameraId(String cameraId) {
+        synchronized (mTorchStates) {
+            if (cameraId == null || cameraId.equals(mRearCameraId)) {
+                return;
             }
+            mRearCameraId = cameraId;
+            final Boolean enabled = mTorchStates.get(cameraId);
+            mTorchEnabled = enabled != null && enabled;
         }
-        return mRearCameraId;
     }
 
-    private Intent getLaunchableIntent(Intent intent) {
-        PackageManager pm = mContext.getPackageManager();
-        List<ResolveInfo> resInfo = pm.queryIntentActivities(intent, 0);
-        if (resInfo.isEmpty()) {
-            return null;
+    private String findRearCameraId() {
+        try {
+            for (final String cameraId : mCameraManager.getCameraIdList()) {
+                final CameraCharacteristics characteristics =
+                        mCameraManager.getCameraCharacteristics(cameraId);
+                final int orientation = characteristics.get(CameraCharacteristics.LENS_FACING);
+                final Boolean hasFlash =
+                        characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+                if (orientation == CameraCharacteristics.LENS_FACING_BACK
+                        && hasFlash != null && hasFlash) {
+                    return cameraId;
+                }
+            }
+        } catch (CameraAccessException | IllegalArgumentException e) {
+            // Ignore
         }
-        return pm.getLaunchIntentForPackage(resInfo.get(0).activityInfo.packageName);
+        return null;
     }
 
     @Override
@@ -577,7 +709,7 @@ public class TouchKeyHandler implements AlternativeDeviceKeyHandler {
 
     @Override
     public boolean canHandleKeyEvent(KeyEvent event) {
-        return ArrayUtils.contains(Constants.sSupportedKeycodes, event.getScanCode());
+        return (Constants.getScanCodeFlags(event.getScanCode()) & Constants.FLAG_SUPPORTED) != 0;
     }
     
     @Override
@@ -18,6 +18,7 @@
 package com.havoc.settings.rogparts.touch;
 
 import android.app.ActionBar;
+import android.app.AlertDialog;
 import android.app.Fragment;
 import android.content.Context;
 import android.content.Intent;
@@ -42,6 +43,7 @@ import com.android.internal.custom.hardware.TouchscreenGesture;
 import com.havoc.settings.rogparts.R;
 
 import java.lang.System;
+import java.util.ArrayList;
 
 public class TouchscreenGestureSettings extends PreferenceActivity
         implements PreferenceFragment.OnPreferenceStartFragmentCallback {
@@ -78,6 +80,13 @@ public class TouchscreenGestureSettings extends PreferenceActivity
         private static final String TOUCHSCREEN_GESTURE_TITLE = KEY_TOUCHSCREEN_GESTURE + "_%s_title";
         private static final String KEY_HAPTIC_FEEDBACK = "touchscreen_gesture_haptic_feedback";
 
+        // List entry that opens the macro composer instead of being stored
+        private static final int ACTION_CUSTOM_MACRO = -1;
+
+        // Serializes computing and applying the gesture states, so a boot restore and a
+        // preference change can't apply stale states over each other
+        private static final Object sGestureStateLock = new Object();
+
         private SwitchPreference mHapticFeedback;
 
         private TouchscreenGesture[] mTouchscreenGestures;
@@ -141,7 +150,8 @@ public class TouchscreenGestureSettings extends PreferenceActivity
                 setEntries(R.array.touchscreen_gesture_action_entries);
                 setEntryValues(R.array.touchscreen_gesture_action_values);
                 setDefaultValue(String.valueOf(defaultAction));
-                setIcon(getIconDrawableResourceForAction(defaultAction));
+                setIcon(getIconDrawableResourceForAction(
+                        GestureMacro.getStep(defaultAction, 0)));
 
                 setSummary("%s");
                 setDialogTitle(R.string.touchscreen_gesture_action_dialog_title);
@@ -152,20 +162,107 @@ public class TouchscreenGestureSettings extends PreferenceActivity
             @Override
             public boolean callChangeListener(final Object newValue) {
                 final int action = Integer.parseInt(String.valueOf(newValue));
-                final LineageHardwareManager manager = LineageHardwareManager.getInstance(mContext);
-                if (!manager.setTouchscreenGestureEnabled(mGesture, action > 0)) {
+                if (action == ACTION_CUSTOM_MACRO) {
+                    showMacroComposer();
                     return false;
                 }
+                synchronized (sGestureStateLock) {
+                    final int[] actionList = buildActionList(mContext, mTouchscreenGestures);
+                    actionList[mGesture.id] = action;
+                    if (!setTouchscreenGesturesEnabled(mContext, mTouchscreenGestures,
+                            actionList)) {
+                        return false;
+                    }
+                }
                 return super.callChangeListener(newValue);
             }
 
+            @Override
+            public CharSequence getSummary() {
+                final String value = getValue();
+                if (value == null || findIndexOfValue(value) >= 0) {
+                    return super.getSummary();
+                }
+                // A composed macro: its steps, in order
+                final int macro = Integer.parseInt(value);
+                final StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < GestureMacro.getStepCount(macro); i++) {
+                    final int index = findIndexOfValue(
+                            String.valueOf(GestureMacro.getStep(macro, i)));
+                    if (index < 0) {
+                        continue;
+                    }
+                    if (sb.length() > 0) {
+                        sb.append(mContext.getString(
+                                R.string.touchscreen_gesture_macro_step_separator));
+                    }
+                    sb.append(getEntries()[index]);
+                }
+                return sb;
+            }
+
+            /**
+             * Lets the user check up to GestureMacro.MAX_STEPS single actions; they run in
+             * the order they were checked, and the packed macro is stored like any action.
+             */
+            private void showMacroComposer() {
+                final CharSequence[] entries = getEntries();
+                final CharSequence[] values = getEntryValues();
+                final ArrayList<CharSequence> labels = new ArrayList<>();
+                final ArrayList<Integer> actions = new ArrayList<>();
+                for (int i = 0; i < values.length; i++) {
+                    final int action = Integer.parseInt(values[i].toString());
+                    if (action >= Constants.ACTION_BACK && !GestureMacro.isMacro(action)) {
+                        labels.add(entries[i]);
+                        actions.add(action);
+                    }
+                }
+
+                final ArrayList<Integer> steps = new ArrayList<>();
+                new AlertDialog.Builder(mContext)
+                        .setTitle(R.string.touchscreen_gesture_macro_dialog_title)
+                        .setMultiChoiceItems(labels.toArray(new CharSequence[0]), null,
+                                (dialog, which, isChecked) -> {
+                            final Integer action = actions.get(which);
+                            if (!isChecked) {
+                                steps.remove(action);
+                            } else if (steps.size() < GestureMacro.MAX_STEPS) {
+                                steps.add(action);
+                            } else {
+                                ((AlertDialog) dialog).getListView()
+                                        .setItemChecked(which, false);
+                            }
+                        })
+                        .setPositiveButton(R.string.dialog_ok,
+                                (dialog, which) -> applyMacro(steps))
+                        .setNegativeButton(android.R.string.cancel, null)
+                        .show();
+            }
+
+            private void applyMacro(final ArrayList<Integer> steps) {
+                final int[] actions = new int[steps.size()];
+                for (int i = 0; i < actions.length; i++) {
+                    actions[i] = steps.get(i);
+                }
+                final int macro = GestureMacro.pack(actions);
+                if (macro <= 0) {
+                    // Nothing checked
+                    return;
+                }
+                final String value = String.valueOf(macro);
+                if (callChangeListener(value)) {
+                    setValue(value);
+                }
+            }
+
             @Override
             protected boolean persistString(String value) {
                 if (!super.persistString(value)) {
                     return false;
                 }
                 final int action = Integer.parseInt(String.valueOf(value));
-                setIcon(getIconDrawableResourceForAction(action));
+                // Macros show the icon of their first step
+                setIcon(getIconDrawableResourceForAction(GestureMacro.getStep(action, 0)));
                 sendUpdateBroadcast(mContext, mTouchscreenGestures);
                 return true;
             }
@@ -234,14 +331,30 @@ public class TouchscreenGestureSettings extends PreferenceActivity
 
             final LineageHardwareManager manager = LineageHardwareManager.getInstance(context);
             final TouchscreenGesture[] gestures = manager.getTouchscreenGestures();
-            final int[] actionList = buildActionList(context, gestures);
-            for (final TouchscreenGesture gesture : gestures) {
-                manager.setTouchscreenGestureEnabled(gesture, actionList[gesture.id] > 0);
+            synchronized (sGestureStateLock) {
+                setTouchscreenGesturesEnabled(context, gestures,
+                        buildActionList(context, gestures));
             }
 
             sendUpdateBroadcast(context, gestures);
         }
 
+        /**
+         * Applies the enabled state of every gesture as one batch; callers hold
+         * sGestureStateLock so batches never interleave. The HAL skips the driver write
+         * for gestures whose state didn't change.
+         */
+        private static boolean setTouchscreenGesturesEnabled(final Context context,
+                final TouchscreenGesture[] gestures, final int[] actionList) {
+            final LineageHardwareManager manager = LineageHardwareManager.getInstance(context);
+            boolean result = true;
+            for (final TouchscreenGesture gesture : gestures) {
+                result &= manager.setTouchscreenGestureEnabled(gesture,
+                        actionList[gesture.id] > 0);
+            }
+            return result;
+        }
+
         private static boolean isTouchscreenGesturesSupported(final Context context) {
             final LineageHardwareManager manager = LineageHardwareManager.getInstance(context);
             return manager.isSupported(LineageHardwareManager.FEATURE_TOUCHSCREEN_GESTURES);
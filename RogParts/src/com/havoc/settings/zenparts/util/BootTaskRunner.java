@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.util;
+
+import android.content.BroadcastReceiver;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs independent boot restore tasks in parallel off the main thread, keeping the
+ * broadcast alive through goAsync() until they are done or the deadline passes.
+ * Tasks still running at the deadline are left to finish on their own; the broadcast
+ * is released either way and the overrun is logged.
+ */
+public final class BootTaskRunner {
+
+    private static final String TAG = "BootTaskRunner";
+
+    // Well inside the 60s background broadcast timeout
+    private static final long DEADLINE_MS = 10000;
+
+    private final String mName;
+    private final List<String> mTaskNames = new ArrayList<>();
+    private final List<Runnable> mTasks = new ArrayList<>();
+
+    public BootTaskRunner(String name) {
+        mName = name;
+    }
+
+    public BootTaskRunner add(String name, Runnable task) {
+        mTaskNames.add(name);
+        mTasks.add(task);
+        return this;
+    }
+
+    /**
+     * Starts every task on its own thread. Must be called from onReceive().
+     */
+    public void run(BroadcastReceiver receiver) {
+        final BroadcastReceiver.PendingResult result = receiver.goAsync();
+        final int count = mTasks.size();
+        // Written by the task threads, read by the deadline thread even when a task overruns
+        final AtomicLongArray durationsMs = new AtomicLongArray(count);
+        for (int i = 0; i < count; i++) {
+            durationsMs.set(i, -1);
+        }
+        final CountDownLatch done = new CountDownLatch(count);
+        final long startMs = SystemClock.elapsedRealtime();
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            new Thread(() -> {
+                final long taskStartMs = SystemClock.elapsedRealtime();
+                try {
+                    mTasks.get(index).run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, mName + ": " + mTaskNames.get(index) + " failed", e);
+                } finally {
+                    durationsMs.set(index, SystemClock.elapsedRealtime() - taskStartMs);
+                    done.countDown();
+                }
+            }, mName + ":" + mTaskNames.get(i)).start();
+        }
+
+        new Thread(() -> {
+            boolean finished = false;
+            try {
+                finished = done.await(DEADLINE_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+            final StringBuilder sb = new StringBuilder(mName).append(": ")
+                    .append(SystemClock.elapsedRealtime() - startMs).append("ms");
+            for (int i = 0; i < count; i++) {
+                sb.append(' ').append(mTaskNames.get(i)).append('=');
+                final long durationMs = durationsMs.get(i);
+                sb.append(durationMs >= 0 ? durationMs + "ms" : "overrun");
+            }
+            if (finished) {
+                Log.i(TAG, sb.toString());
+            } else {
+                Log.w(TAG, sb.append(" (deadline passed)").toString());
+            }
+            result.finish();
+        }, mName + ":deadline").start();
+    }
+}
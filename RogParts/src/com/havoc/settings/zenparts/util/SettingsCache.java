@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.util;
+
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide in-memory snapshot of the Settings.Secure / Settings.System values
+ * RogParts reads on its hot paths. Values are loaded once, invalidated through a
+ * ContentObserver and served from memory afterwards.
+ *
+ * All reads resolve against the current user; the whole snapshot is dropped on
+ * user switch.
+ */
+public final class SettingsCache {
+
+    private static final String TAG = "SettingsCache";
+    private static final boolean DEBUG = false;
+
+    public static final String KEY_TOUCHSCREEN_HAPTIC_FEEDBACK =
+            "touchscreen_gesture_haptic_feedback";
+    public static final String KEY_TOUCHSCREEN_SPECULATIVE_WAKE =
+            "touchscreen_gesture_speculative_wake";
+
+    private static SettingsCache sInstance;
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Object mLock = new Object();
+
+    private final ConcurrentHashMap<Uri, Entry> mValues = new ConcurrentHashMap<>();
+    private final Set<Uri> mObservedUris = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+    private static final class Entry {
+        final String value;
+
+        Entry(String value) {
+            this.value = value;
+        }
+    }
+
+    private final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null) {
+                invalidateAll();
+                return;
+            }
+            invalidate(uri);
+        }
+    };
+
+    private final BroadcastReceiver mUserSwitchReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidateAll();
+        }
+    };
+
+    public static synchronized SettingsCache getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new SettingsCache(appContext != null ? appContext : context);
+        }
+        return sInstance;
+    }
+
+    private SettingsCache(Context context) {
+        mContext = context;
+        mResolver = context.getContentResolver();
+        mContext.registerReceiver(mUserSwitchReceiver,
+                new IntentFilter(Intent.ACTION_USER_SWITCHED));
+
+        // Warm up the keys read on the gesture and doze paths
+        getSecureString(Settings.Secure.USER_SETUP_COMPLETE);
+        getSecureString(Settings.Secure.DOZE_ENABLED);
+        getSecureString(Settings.Secure.DOZE_ALWAYS_ON);
+        getSystemString(KEY_TOUCHSCREEN_HAPTIC_FEEDBACK);
+        getSystemString(KEY_TOUCHSCREEN_SPECULATIVE_WAKE);
+    }
+
+    public String getSecureString(String key) {
+        return get(Settings.Secure.getUriFor(key), key, true);
+    }
+
+    public String getSystemString(String key) {
+        return get(Settings.System.getUriFor(key), key, false);
+    }
+
+    public int getSecureInt(String key, int defValue) {
+        return parseInt(getSecureString(key), defValue);
+    }
+
+    public int getSystemInt(String key, int defValue) {
+        return parseInt(getSystemString(key), defValue);
+    }
+
+    public long getSystemLong(String key, long defValue) {
+        final String value = getSystemString(key);
+        if (value == null) {
+            return defValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+
+    public float getSystemFloat(String key, float defValue) {
+        final String value = getSystemString(key);
+        if (value == null) {
+            return defValue;
+        }
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+
+    /**
+     * Drop a Settings.Secure value after writing it, so the writer reads its own
+     * value back without waiting for the observer callback.
+     */
+    public void invalidateSecure(String key) {
+        invalidate(Settings.Secure.getUriFor(key));
+    }
+
+    /**
+     * Drop a Settings.System value after writing it.
+     */
+    public void invalidateSystem(String key) {
+        invalidate(Settings.System.getUriFor(key));
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println("SettingsCache:");
+        pw.println("  entries=" + mValues.size() + " observed=" + mObservedUris.size());
+        pw.println("  hits=" + mHits.get() + " misses=" + mMisses.get()
+                + " invalidations=" + mInvalidations.get());
+    }
+
+    private String get(Uri uri, String key, boolean secure) {
+        Entry entry = mValues.get(uri);
+        if (entry != null) {
+            mHits.incrementAndGet();
+            return entry.value;
+        }
+
+        synchronized (mLock) {
+            entry = mValues.get(uri);
+            if (entry != null) {
+                mHits.incrementAndGet();
+                return entry.value;
+            }
+            mMisses.incrementAndGet();
+            if (mObservedUris.add(uri)) {
+                mResolver.registerContentObserver(uri, false, mObserver, UserHandle.USER_ALL);
+            }
+            final String value = secure
+                    ? Settings.Secure.getStringForUser(mResolver, key, UserHandle.USER_CURRENT)
+                    : Settings.System.getStringForUser(mResolver, key, UserHandle.USER_CURRENT);
+            mValues.put(uri, new Entry(value));
+            if (DEBUG) Log.d(TAG, "Loaded " + uri + "=" + value);
+            return value;
+        }
+    }
+
+    private void invalidate(Uri uri) {
+        synchronized (mLock) {
+            if (mValues.remove(uri) != null) {
+                mInvalidations.incrementAndGet();
+            }
+        }
+    }
+
+    private void invalidateAll() {
+        synchronized (mLock) {
+            mInvalidations.addAndGet(mValues.size());
+            mValues.clear();
+        }
+    }
+
+    private static int parseInt(String value, int defValue) {
+        if (value == null) {
+            return defValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defValue;
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class GestureEngineTest {
+
+    private static final int SCAN_CODE_UNHANDLED = 30;
+
+    private static final class FakeSink implements GestureEngine.ActionSink {
+        boolean queued;
+        int dispatched;
+        int deferred;
+        int downs;
+        int abandoned;
+        int lastAction;
+        long lastEventTimeNs;
+        long lastEntryNs;
+        long lastRecordId;
+
+        @Override
+        public boolean isGestureQueued() {
+            return queued;
+        }
+
+        @Override
+        public void dispatch(int action, int scanCode, long eventTimeNs, long entryNs,
+                long recordId) {
+            dispatched++;
+            record(action, eventTimeNs, entryNs, recordId);
+        }
+
+        @Override
+        public void dispatchAfterProximityCheck(int action, int scanCode, long eventTimeNs,
+                long entryNs, long recordId) {
+            deferred++;
+            record(action, eventTimeNs, entryNs, recordId);
+        }
+
+        @Override
+        public void onGestureDown(int action) {
+            downs++;
+            lastAction = action;
+        }
+
+        @Override
+        public void onGestureAbandoned() {
+            abandoned++;
+        }
+
+        private void record(int action, long eventTimeNs, long entryNs, long recordId) {
+            lastAction = action;
+            lastEventTimeNs = eventTimeNs;
+            lastEntryNs = entryNs;
+            lastRecordId = recordId;
+        }
+    }
+
+    private long mNowNs;
+    private int mVerdict;
+    private boolean mSetupComplete;
+    private FakeSink mSink;
+    private GestureFlightRecorder mRecorder;
+    private GestureEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mNowNs = 1000;
+        mVerdict = GestureEngine.VERDICT_FAR;
+        mSetupComplete = true;
+        mSink = new FakeSink();
+        mRecorder = new GestureFlightRecorder();
+        mEngine = newEngine(() -> mVerdict);
+        mEngine.setMapping(
+                new int[] { Constants.GESTURE_DOUBLE_CLICK, Constants.GESTURE_C,
+                        Constants.GESTURE_W },
+                new int[] { Constants.ACTION_WAKE_UP, Constants.ACTION_CAMERA, 0 });
+    }
+
+    private GestureEngine newEngine(GestureEngine.ProximitySource proximity) {
+        return new GestureEngine(() -> mNowNs, proximity, () -> mSetupComplete, mSink,
+                mRecorder);
+    }
+
+    private String exportRecorder() throws IOException {
+        final StringWriter writer = new StringWriter();
+        mRecorder.writeCsv(writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void unhandledScanCodePassesThrough() {
+        assertFalse(mEngine.onKeyEvent(SCAN_CODE_UNHANDLED, false, 1));
+        assertFalse(mEngine.onKeyEvent(SCAN_CODE_UNHANDLED, true, 2));
+        assertFalse(mEngine.onKeyEvent(-1, true, 3));
+        assertFalse(mEngine.onKeyEvent(Constants.MAX_SCAN_CODE + 1, true, 4));
+        assertEquals(0, mSink.dispatched + mSink.deferred + mSink.downs);
+    }
+
+    @Test
+    public void unmappedGesturePassesThroughAndIsRecorded() throws IOException {
+        assertFalse(mEngine.onKeyEvent(Constants.GESTURE_Z, true, 1));
+        assertEquals(0, mSink.dispatched);
+        assertTrue(exportRecorder().contains(",not_mapped\n"));
+    }
+
+    @Test
+    public void mappedGestureDispatchesOnUp() {
+        mNowNs = 42;
+        assertTrue(mEngine.onKeyEvent(Constants.GESTURE_C, true, 7));
+        assertEquals(1, mSink.dispatched);
+        assertEquals(Constants.ACTION_CAMERA, mSink.lastAction);
+        assertEquals(7000000L, mSink.lastEventTimeNs);
+        assertEquals(42, mSink.lastEntryNs);
+    }
+
+    @Test
+    public void downIsPassedThroughAndStartsWake() {
+        assertFalse(mEngine.onKeyEvent(Constants.GESTURE_C, false, 1));
+        assertEquals(0, mSink.dispatched);
+        assertEquals(1, mSink.downs);
+        assertEquals(Constants.ACTION_CAMERA, mSink.lastAction);
+    }
+
+    @Test
+    public void downDoesNotStartWakeWhenNear() {
+        mVerdict = GestureEngine.VERDICT_NEAR;
+        mEngine.onKeyEvent(Constants.GESTURE_C, false, 1);
+        assertEquals(0, mSink.downs);
+    }
+
+    @Test
+    public void setupIncompletePassesThrough() throws IOException {
+        mSetupComplete = false;
+        assertFalse(mEngine.onKeyEvent(Constants.GESTURE_C, false, 1));
+        assertFalse(mEngine.onKeyEvent(Constants.GESTURE_C, true, 2));
+        assertEquals(0, mSink.dispatched + mSink.downs);
+        assertTrue(exportRecorder().contains(",setup_incomplete\n"));
+    }
+
+    @Test
+    public void disabledGestureIsConsumedWithoutDispatch() throws IOException {
+        assertTrue(mEngine.onKeyEvent(Constants.GESTURE_W, true, 1));
+        assertEquals(0, mSink.dispatched + mSink.deferred);
+        assertTrue(exportRecorder().contains(",disabled\n"));
+    }
+
+    @Test
+    public void gestureWhileQueuedIsDropped() {
+        mSink.queued = true;
+        assertTrue(mEngine.onKeyEvent(Constants.GESTURE_C, true, 1));
+        assertEquals(0, mSink.dispatched);
+        assertEquals(1, mSink.abandoned);
+        assertEquals(1, mEngine.getDroppedBusyCount());
+    }
+
+    @Test
+    public void nearGestureIsDropped() {
+        mVerdict = GestureEngine.VERDICT_NEAR;
+        assertTrue(mEngine.onKeyEvent(Constants.GESTURE_C, true, 1));
+        assertEquals(0, mSink.dispatched + mSink.deferred);
+        assertEquals(1, mSink.abandoned);
+        assertEquals(1, mEngine.getDroppedProximityCount());
+    }
+
+    @Test
+    public void unknownProximityDefersToCheck() {
+        mVerdict = GestureEngine.VERDICT_UNKNOWN;
+        assertTrue(mEngine.onKeyEvent(Constants.GESTURE_C, true, 1));
+        assertEquals(0, mSink.dispatched);
+        assertEquals(1, mSink.deferred);
+    }
+
+    @Test
+    public void proximityRejectionIsCountedAndRecorded() throws IOException {
+        mVerdict = GestureEngine.VERDICT_UNKNOWN;
+        mEngine.onKeyEvent(Constants.GESTURE_C, true, 1);
+        mEngine.onProximityRejected(mSink.lastRecordId);
+        assertEquals(1, mEngine.getDroppedProximityCount());
+        assertTrue(exportRecorder().contains(",near,proximity_near\n"));
+    }
+
+    @Test
+    public void missingProximitySensorNeverGates() {
+        mEngine = newEngine(null);
+        mEngine.setMapping(new int[] { Constants.GESTURE_C },
+                new int[] { Constants.ACTION_CAMERA });
+        assertTrue(mEngine.onKeyEvent(Constants.GESTURE_C, true, 1));
+        assertEquals(1, mSink.dispatched);
+    }
+
+    @Test
+    public void letterGesturesEnableHaptics() {
+        mEngine.onKeyEvent(Constants.GESTURE_DOUBLE_CLICK, false, 1);
+        assertFalse(mEngine.isTouchscreenHaptic());
+        mEngine.onKeyEvent(Constants.GESTURE_C, false, 2);
+        assertTrue(mEngine.isTouchscreenHaptic());
+    }
+
+    @Test
+    public void mappingUpdateReplacesWholeSnapshot() {
+        final int version = mEngine.getMappingVersion();
+        mEngine.setMapping(new int[] { Constants.GESTURE_V },
+                new int[] { Constants.ACTION_FLASHLIGHT });
+        assertEquals(version + 1, mEngine.getMappingVersion());
+        assertFalse(mEngine.onKeyEvent(Constants.GESTURE_C, true, 1));
+        assertTrue(mEngine.onKeyEvent(Constants.GESTURE_V, true, 2));
+        assertEquals(Constants.ACTION_FLASHLIGHT, mSink.lastAction);
+    }
+
+    @Test
+    public void malformedMappingIsEmpty() {
+        mEngine.setMapping(new int[] { Constants.GESTURE_C }, new int[0]);
+        assertFalse(mEngine.onKeyEvent(Constants.GESTURE_C, true, 1));
+        mEngine.setMapping(null, null);
+        assertFalse(mEngine.onKeyEvent(Constants.GESTURE_C, true, 2));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class GestureFlightRecorderTest {
+
+    private final GestureFlightRecorder mRecorder = new GestureFlightRecorder();
+
+    @Test
+    public void keepsLastCapacityRecordsOldestFirst() throws IOException {
+        for (int i = 0; i < GestureFlightRecorder.CAPACITY + 10; i++) {
+            mRecorder.record(Constants.GESTURE_C, Constants.ACTION_CAMERA, i,
+                    GestureEngine.VERDICT_FAR, GestureFlightRecorder.DROP_NONE);
+        }
+        final StringWriter writer = new StringWriter();
+        mRecorder.writeCsv(writer);
+        final String[] lines = writer.toString().split("\n");
+        assertEquals(GestureFlightRecorder.CAPACITY + 1, lines.length);
+        assertTrue(lines[1].startsWith("10,"));
+        assertTrue(lines[lines.length - 1].startsWith(
+                (GestureFlightRecorder.CAPACITY + 9) + ","));
+    }
+
+    @Test
+    public void recordingIsNotBlockedByASlowWriter() throws Exception {
+        mRecorder.record(Constants.GESTURE_C, Constants.ACTION_CAMERA, 1,
+                GestureEngine.VERDICT_FAR, GestureFlightRecorder.DROP_NONE);
+        final long[] recordedId = { -1 };
+
+        // Records from another thread while the export is still writing
+        final StringWriter writer = new StringWriter() {
+            @Override
+            public void write(String str) {
+                if (recordedId[0] < 0) {
+                    final Thread thread = new Thread(() -> recordedId[0] = mRecorder.record(
+                            Constants.GESTURE_V, Constants.ACTION_FLASHLIGHT, 2,
+                            GestureEngine.VERDICT_FAR, GestureFlightRecorder.DROP_NONE));
+                    thread.start();
+                    try {
+                        thread.join(5000);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                }
+                super.write(str);
+            }
+        };
+        mRecorder.writeCsv(writer);
+
+        assertEquals(1, recordedId[0]);
+        // The export is the snapshot taken before the concurrent record
+        assertFalse(writer.toString().contains("flashlight"));
+    }
+}
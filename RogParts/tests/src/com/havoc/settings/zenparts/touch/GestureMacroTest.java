@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class GestureMacroTest {
+
+    // Sized like the action table of TouchKeyHandler
+    private final Runnable[] mActions = new Runnable[Constants.ACTION_FM_RADIO + 1];
+
+    public GestureMacroTest() {
+        for (int action = Constants.ACTION_BACK; action < mActions.length; action++) {
+            mActions[action] = () -> { };
+        }
+    }
+
+    @Test
+    public void packRoundTrips() {
+        final int macro = GestureMacro.pack(Constants.ACTION_WAKE_UP,
+                Constants.ACTION_FLASHLIGHT, Constants.ACTION_PLAY_PAUSE_MUSIC);
+        assertEquals(3, GestureMacro.getStepCount(macro));
+        assertEquals(Constants.ACTION_WAKE_UP, GestureMacro.getStep(macro, 0));
+        assertEquals(Constants.ACTION_FLASHLIGHT, GestureMacro.getStep(macro, 1));
+        assertEquals(Constants.ACTION_PLAY_PAUSE_MUSIC, GestureMacro.getStep(macro, 2));
+        assertEquals(0, GestureMacro.getStep(macro, 3));
+        assertTrue(GestureMacro.isMacro(macro));
+        assertEquals("wake_up+flashlight+play_pause", GestureMacro.getName(macro));
+    }
+
+    @Test
+    public void presetValuesMatchTheirSteps() {
+        // Hard-coded in touchscreen_gesture_action_values
+        assertEquals(426, GestureMacro.pack(Constants.ACTION_WAKE_UP,
+                Constants.ACTION_FLASHLIGHT));
+        assertEquals(622, GestureMacro.pack(Constants.ACTION_CAMERA,
+                Constants.ACTION_PLAY_PAUSE_MUSIC));
+    }
+
+    @Test
+    public void plainActionIsOneStepMacro() {
+        assertEquals(Constants.ACTION_CAMERA, GestureMacro.pack(Constants.ACTION_CAMERA));
+        assertEquals(1, GestureMacro.getStepCount(Constants.ACTION_CAMERA));
+        assertFalse(GestureMacro.isMacro(Constants.ACTION_CAMERA));
+    }
+
+    @Test
+    public void packRejectsWhatDoesNotFit() {
+        assertEquals(-1, GestureMacro.pack(0));
+        assertEquals(-1, GestureMacro.pack(32));
+        assertEquals(-1, GestureMacro.pack(1, 2, 3, 4, 5, 6, 7));
+    }
+
+    @Test
+    public void knownStepsAreRunnable() {
+        assertTrue(GestureMacro.isRunnable(Constants.ACTION_FM_RADIO, mActions));
+        assertTrue(GestureMacro.isRunnable(GestureMacro.pack(Constants.ACTION_WAKE_UP,
+                Constants.ACTION_FLASHLIGHT), mActions));
+    }
+
+    @Test
+    public void emptyMacroIsNotRunnable() {
+        assertFalse(GestureMacro.isRunnable(0, mActions));
+        assertFalse(GestureMacro.isRunnable(-1, mActions));
+    }
+
+    @Test
+    public void stepWithoutActionIsNotRunnable() {
+        // 1 fits a step but has no action
+        assertFalse(GestureMacro.isRunnable(1, mActions));
+    }
+
+    @Test
+    public void outOfRangeStepIsNotRunnable() {
+        // Steps are 5 bits wide; everything from ACTION_FM_RADIO + 1 to 31 is past the table
+        for (int step = Constants.ACTION_FM_RADIO + 1; step <= 31; step++) {
+            assertFalse(GestureMacro.isRunnable(step, mActions));
+            assertFalse(GestureMacro.isRunnable(
+                    GestureMacro.pack(Constants.ACTION_WAKE_UP, step), mActions));
+        }
+    }
+}
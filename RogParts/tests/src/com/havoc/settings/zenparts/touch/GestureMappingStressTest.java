@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hammers GestureEngine.setMapping() from one thread, alternating two mappings that
+ * share no action, while other threads dispatch every gesture. Each read must come
+ * from one whole mapping: never unmapped, never an action from neither, and never a
+ * mix of both while the mapping version stayed the same.
+ */
+public class GestureMappingStressTest {
+
+    private static final int READERS = 3;
+    private static final int WRITES = 100000;
+
+    private static final int[] sScanCodes = Constants.sSupportedKeycodes.clone();
+    private static final int[] sActionsA = new int[sScanCodes.length];
+    private static final int[] sActionsB = new int[sScanCodes.length];
+
+    static {
+        for (int i = 0; i < sScanCodes.length; i++) {
+            sActionsA[i] = Constants.ACTION_BACK + i;
+            sActionsB[i] = Constants.ACTION_BACK + sScanCodes.length + i;
+        }
+    }
+
+    /** Remembers the last action dispatched on each reader thread. */
+    private static final class ThreadSink implements GestureEngine.ActionSink {
+        private final ThreadLocal<int[]> mLastAction = ThreadLocal.withInitial(() -> new int[1]);
+
+        int takeLastAction() {
+            final int[] last = mLastAction.get();
+            final int action = last[0];
+            last[0] = -1;
+            return action;
+        }
+
+        @Override
+        public boolean isGestureQueued() {
+            return false;
+        }
+
+        @Override
+        public void dispatch(int action, int scanCode, long eventTimeNs, long entryNs,
+                long recordId) {
+            mLastAction.get()[0] = action;
+        }
+
+        @Override
+        public void dispatchAfterProximityCheck(int action, int scanCode, long eventTimeNs,
+                long entryNs, long recordId) {
+            mLastAction.get()[0] = action;
+        }
+
+        @Override
+        public void onGestureDown(int action) {
+        }
+
+        @Override
+        public void onGestureAbandoned() {
+        }
+    }
+
+    @Test
+    public void readersNeverSeePartialOrMixedMapping() throws InterruptedException {
+        final ThreadSink sink = new ThreadSink();
+        final GestureEngine engine = new GestureEngine(System::nanoTime,
+                () -> GestureEngine.VERDICT_FAR, () -> true, sink, new GestureFlightRecorder());
+        // Odd versions are A, even ones B
+        engine.setMapping(sScanCodes, sActionsA);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicLong stableReads = new AtomicLong();
+        final StringBuilder firstFailure = new StringBuilder();
+
+        final Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            readers[r] = new Thread(() -> {
+                final int[] seen = new int[sScanCodes.length];
+                while (!done.get()) {
+                    final int before = engine.getMappingVersion();
+                    for (int i = 0; i < sScanCodes.length; i++) {
+                        engine.onKeyEvent(sScanCodes[i], true, 1);
+                        seen[i] = sink.takeLastAction();
+                    }
+                    final int after = engine.getMappingVersion();
+                    final String error = check(seen, before == after ? before : -1);
+                    if (error != null) {
+                        if (failures.getAndIncrement() == 0) {
+                            synchronized (firstFailure) {
+                                firstFailure.append(error);
+                            }
+                        }
+                    } else if (before == after) {
+                        stableReads.incrementAndGet();
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        for (int i = 0; i < WRITES; i++) {
+            engine.setMapping(sScanCodes, (i & 1) == 0 ? sActionsB : sActionsA);
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        synchronized (firstFailure) {
+            assertEquals(firstFailure.toString(), 0, failures.get());
+        }
+        assertEquals(WRITES + 1, engine.getMappingVersion());
+        assertTrue(stableReads.get() > 0);
+    }
+
+    /**
+     * Returns what is wrong with one pass over every gesture, or null. When the version
+     * did not change during the pass, stableVersion says which mapping it must match.
+     */
+    private static String check(int[] seen, int stableVersion) {
+        for (int i = 0; i < seen.length; i++) {
+            if (seen[i] != sActionsA[i] && seen[i] != sActionsB[i]) {
+                return "scan code " + sScanCodes[i] + " read as " + seen[i];
+            }
+        }
+        if (stableVersion < 0) {
+            return null;
+        }
+        final int[] expected = (stableVersion & 1) == 1 ? sActionsA : sActionsB;
+        for (int i = 0; i < seen.length; i++) {
+            if (seen[i] != expected[i]) {
+                return "mixed mapping at version " + stableVersion + ": scan code "
+                        + sScanCodes[i] + " read as " + seen[i];
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class GestureWakeLockTest {
+
+    private static final long MS = 1000000L;
+
+    private long mNowNs;
+    private boolean mHeld;
+    private long mDeadlineNs;
+    private GestureWakeLock mWakeLock;
+
+    @Before
+    public void setUp() {
+        mNowNs = 1000 * MS;
+        mWakeLock = new GestureWakeLock(new GestureWakeLock.Lock() {
+            @Override
+            public void acquire(long timeoutMs) {
+                mHeld = true;
+                mDeadlineNs = mNowNs + timeoutMs * MS;
+            }
+
+            @Override
+            public void release() {
+                mHeld = false;
+            }
+
+            @Override
+            public boolean isHeld() {
+                return mHeld && mNowNs < mDeadlineNs;
+            }
+        }, () -> mNowNs);
+    }
+
+    @Test
+    public void releaseBeforeTimeoutIsEarly() {
+        mWakeLock.acquire(500);
+        mNowNs += 100 * MS;
+        mWakeLock.release();
+        assertFalse(mHeld);
+        assertEquals(1, mWakeLock.getEarlyReleaseCount());
+        assertEquals(0, mWakeLock.getTimeoutCount());
+    }
+
+    @Test
+    public void releaseAfterTimeoutIsNotEarly() {
+        mWakeLock.acquire(500);
+        mNowNs += 600 * MS;
+        mWakeLock.release();
+        assertEquals(0, mWakeLock.getEarlyReleaseCount());
+        assertEquals(1, mWakeLock.getTimeoutCount());
+
+        // Nothing left to count
+        mWakeLock.release();
+        assertEquals(1, mWakeLock.getTimeoutCount());
+    }
+
+    @Test
+    public void timeoutIsCountedOnNextAcquire() {
+        mWakeLock.acquire(500);
+        mNowNs += 600 * MS;
+        mWakeLock.acquire(500);
+        assertEquals(1, mWakeLock.getTimeoutCount());
+        mWakeLock.release();
+        assertEquals(1, mWakeLock.getEarlyReleaseCount());
+    }
+
+    @Test
+    public void extendedLockIsReleasedEarly() {
+        mWakeLock.acquire(500);
+        mNowNs += 400 * MS;
+        mWakeLock.onActionStart(Constants.ACTION_CAMERA);
+        mNowNs += 400 * MS;
+        mWakeLock.onActionComplete(Constants.ACTION_BACK);
+        assertEquals(1, mWakeLock.getEarlyReleaseCount());
+        assertEquals(0, mWakeLock.getTimeoutCount());
+    }
+
+    @Test
+    public void lingerIsNeitherEarlyNorTimeout() {
+        mWakeLock.acquire(500);
+        mWakeLock.onActionStart(Constants.ACTION_NEXT_TRACK);
+        mWakeLock.onActionComplete(Constants.ACTION_NEXT_TRACK);
+        assertTrue(mHeld);
+        mNowNs += GestureWakeLock.TRACK_SKIP_LINGER_MS * MS;
+        mWakeLock.acquire(500);
+        assertEquals(0, mWakeLock.getEarlyReleaseCount());
+        assertEquals(0, mWakeLock.getTimeoutCount());
+
+        // Cutting a linger short isn't an early release either
+        mWakeLock.onActionComplete(Constants.ACTION_NEXT_TRACK);
+        mWakeLock.release();
+        assertFalse(mHeld);
+        assertEquals(0, mWakeLock.getEarlyReleaseCount());
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.havoc.settings.rogparts.touch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives GestureWakeLock and SpeculativeWake through rapid start/commit/rollback
+ * sequences, wired the way TouchKeyHandler wires them, and checks that the wakelock is
+ * never released while not held and is never left held past a linger.
+ */
+public class GestureWakeStressTest {
+
+    private static final long MS = 1000000L;
+    private static final long EVENT_TIMEOUT_MS = 500;
+    private static final long PROXIMITY_TIMEOUT_MS = 500;
+    // Highest ceiling GestureWakeLock may ever ask for: a full macro of launches
+    private static final long MAX_TIMEOUT_MS = GestureMacro.MAX_STEPS * 3000;
+    private static final int UNRUNNABLE = 30;
+
+    private static final int[] sActions = new int[] {
+        Constants.ACTION_BACK,
+        Constants.ACTION_CAMERA,
+        Constants.ACTION_NEXT_TRACK,
+        Constants.ACTION_FM_RADIO,
+        GestureMacro.pack(Constants.ACTION_WAKE_UP, Constants.ACTION_PREVIOUS_TRACK),
+        GestureMacro.pack(Constants.ACTION_FLASHLIGHT, Constants.ACTION_BROWSER),
+        UNRUNNABLE,
+    };
+
+    /** Non reference counted lock that times out on the given clock. */
+    private static final class FakeLock implements GestureWakeLock.Lock {
+        private final GestureEngine.Clock mClock;
+        private boolean mHeld;
+        private long mDeadlineNs;
+        int acquires;
+        int releases;
+        int badReleases;
+        int badTimeouts;
+
+        FakeLock(GestureEngine.Clock clock) {
+            mClock = clock;
+        }
+
+        @Override
+        public synchronized void acquire(long timeoutMs) {
+            if (timeoutMs <= 0 || timeoutMs > MAX_TIMEOUT_MS) {
+                badTimeouts++;
+            }
+            mHeld = true;
+            mDeadlineNs = mClock.nanoTime() + timeoutMs * MS;
+            acquires++;
+        }
+
+        @Override
+        public synchronized void release() {
+            if (!isHeld()) {
+                badReleases++;
+            }
+            mHeld = false;
+            releases++;
+        }
+
+        @Override
+        public synchronized boolean isHeld() {
+            return mHeld && mClock.nanoTime() < mDeadlineNs;
+        }
+
+        synchronized long getRemainingMs() {
+            return isHeld() ? (mDeadlineNs - mClock.nanoTime()) / MS : 0;
+        }
+    }
+
+    /** The gesture handler, run on a virtual clock. */
+    private final class FakeScheduler implements SpeculativeWake.Scheduler {
+        private final ArrayList<Runnable> mTasks = new ArrayList<>();
+        private final ArrayList<Long> mDueNs = new ArrayList<>();
+
+        @Override
+        public void post(Runnable r) {
+            postDelayed(r, 0);
+        }
+
+        @Override
+        public void postDelayed(Runnable r, long delayMs) {
+            mTasks.add(r);
+            mDueNs.add(mNowNs + delayMs * MS);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable r) {
+            for (int i = mTasks.size() - 1; i >= 0; i--) {
+                if (mTasks.get(i) == r) {
+                    mTasks.remove(i);
+                    mDueNs.remove(i);
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return mTasks.isEmpty();
+        }
+
+        /** Run everything due within ms, in due order, moving the clock along. */
+        void advance(long ms) {
+            final long targetNs = mNowNs + ms * MS;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < mTasks.size(); i++) {
+                    if (mDueNs.get(i) <= targetNs
+                            && (next < 0 || mDueNs.get(i) < mDueNs.get(next))) {
+                        next = i;
+                    }
+                }
+                if (next < 0) {
+                    break;
+                }
+                mNowNs = Math.max(mNowNs, mDueNs.get(next));
+                final Runnable r = mTasks.remove(next);
+                mDueNs.remove(next);
+                r.run();
+            }
+            mNowNs = targetNs;
+        }
+    }
+
+    private static final class FakeDisplay implements SpeculativeWake.Display {
+        boolean interactive;
+        int wakeUps;
+        int sleeps;
+        int badSleeps;
+
+        @Override
+        public boolean isInteractive() {
+            return interactive;
+        }
+
+        @Override
+        public void wakeUp(String reason) {
+            interactive = true;
+            wakeUps++;
+        }
+
+        @Override
+        public void goToSleep() {
+            if (!interactive) {
+                badSleeps++;
+            }
+            interactive = false;
+            sleeps++;
+        }
+    }
+
+    private long mNowNs;
+    private FakeLock mLock;
+    private FakeScheduler mHandler;
+    private FakeDisplay mDisplay;
+    private GestureWakeLock mWakeLock;
+    private SpeculativeWake mWake;
+    private final Runnable[] mActions = new Runnable[Constants.ACTION_FM_RADIO + 1];
+
+    // A gesture message is queued on the handler, as TouchKeyHandler.isGestureQueued()
+    private boolean mGestureQueued;
+    // The speculative wake of the last DOWN, until its UP
+    private int mDownToken = SpeculativeWake.NO_WAKE;
+
+    @Before
+    public void setUp() {
+        mNowNs = 1000 * MS;
+        mLock = new FakeLock(() -> mNowNs);
+        mHandler = new FakeScheduler();
+        mDisplay = new FakeDisplay();
+        mWakeLock = new GestureWakeLock(mLock, () -> mNowNs);
+        mWake = new SpeculativeWake(mDisplay, () -> true, mHandler, () -> mNowNs);
+        for (int action = Constants.ACTION_BACK; action < mActions.length; action++) {
+            mActions[action] = () -> { };
+        }
+    }
+
+    private void onGestureDown(int action) {
+        mDownToken = mWake.start(action);
+        if (mDownToken != SpeculativeWake.NO_WAKE) {
+            mWakeLock.acquire(EVENT_TIMEOUT_MS);
+        }
+    }
+
+    private void abandon() {
+        mWake.abandon(mDownToken);
+        mDownToken = SpeculativeWake.NO_WAKE;
+    }
+
+    private int takeDownToken() {
+        final int token = mDownToken;
+        mDownToken = SpeculativeWake.NO_WAKE;
+        return token;
+    }
+
+    private void dispatch(int action) {
+        final int token = takeDownToken();
+        mWakeLock.acquire(EVENT_TIMEOUT_MS);
+        mGestureQueued = true;
+        mHandler.post(() -> handleGesture(action, token));
+    }
+
+    private void dispatchAfterProximityCheck(int action, boolean far) {
+        final int token = takeDownToken();
+        mWakeLock.acquire(2 * PROXIMITY_TIMEOUT_MS);
+        mGestureQueued = true;
+        mHandler.postDelayed(() -> {
+            if (far) {
+                handleGesture(action, token);
+            } else {
+                mGestureQueued = false;
+                mWake.rollback(token);
+                mWakeLock.release();
+            }
+        }, PROXIMITY_TIMEOUT_MS / 10);
+    }
+
+    private void handleGesture(int action, int token) {
+        mGestureQueued = false;
+        if (!GestureMacro.isRunnable(action, mActions)) {
+            mWake.rollback(token);
+            mWakeLock.release();
+            return;
+        }
+        mWake.commit(token, mNowNs);
+        mWakeLock.onActionStart(action);
+        if (SpeculativeWake.isWaking(action)) {
+            // The action itself turns the display on
+            mDisplay.interactive = true;
+        }
+        mWakeLock.onActionComplete(action);
+        if (mHandler.isEmpty()) {
+            assertNotLeaked();
+        }
+    }
+
+    private void assertNotLeaked() {
+        assertTrue("held " + mLock.getRemainingMs() + "ms after the gesture completed",
+                mLock.getRemainingMs() <= GestureWakeLock.TRACK_SKIP_LINGER_MS);
+    }
+
+    private void assertConsistent() {
+        assertEquals("released while not held", 0, mLock.badReleases);
+        assertEquals("acquired without a bounded timeout", 0, mLock.badTimeouts);
+        assertEquals("put to sleep while not interactive", 0, mDisplay.badSleeps);
+    }
+
+    private String dumpWake() {
+        final StringWriter writer = new StringWriter();
+        mWake.dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+
+    private void drain() {
+        mHandler.advance(MAX_TIMEOUT_MS + 1000);
+        assertTrue(mHandler.isEmpty());
+        assertFalse(mLock.isHeld());
+
+        final Matcher m = Pattern.compile("started=(\\d+) committed=(\\d+) rolled back=(\\d+)")
+                .matcher(dumpWake());
+        assertTrue(m.find());
+        assertEquals("speculative wake left active", Long.parseLong(m.group(1)),
+                Long.parseLong(m.group(2)) + Long.parseLong(m.group(3)));
+    }
+
+    @Test
+    public void backToBackStartCommitRollback() {
+        for (int i = 0; i < 10000; i++) {
+            final int action = sActions[i % sActions.length];
+            mDisplay.interactive = false;
+
+            // Committed
+            onGestureDown(action);
+            dispatch(action);
+            mHandler.advance(0);
+
+            // Rejected by proximity
+            onGestureDown(action);
+            dispatchAfterProximityCheck(action, false);
+            mHandler.advance(PROXIMITY_TIMEOUT_MS);
+
+            // Dropped as busy, UP never arriving
+            onGestureDown(action);
+            abandon();
+            onGestureDown(action);
+            mHandler.advance(0);
+
+            assertConsistent();
+        }
+        drain();
+        assertConsistent();
+        assertTrue(mLock.releases > 0);
+    }
+
+    @Test
+    public void abandonedSecondGestureKeepsFirstWake() {
+        mDisplay.interactive = false;
+        // A's DOWN, then B's DOWN before the handler ran A's begin
+        onGestureDown(Constants.ACTION_CAMERA);
+        final int first = takeDownToken();
+        onGestureDown(Constants.ACTION_BROWSER);
+        mHandler.advance(0);
+        assertTrue(mDisplay.interactive);
+
+        // B is dropped as busy; A's wake must survive
+        abandon();
+        mHandler.advance(0);
+        assertTrue(mDisplay.interactive);
+        assertEquals(0, mDisplay.sleeps);
+
+        mWake.commit(first, mNowNs);
+        final String dump = dumpWake();
+        assertTrue(dump, dump.contains("started=1 committed=1 rolled back=0"));
+        // The head start is accounted to A's action, not to B's
+        assertTrue(dump, dump.contains("saved " + Constants.getActionName(
+                Constants.ACTION_CAMERA)));
+        assertFalse(dump, dump.contains("saved " + Constants.getActionName(
+                Constants.ACTION_BROWSER)));
+        drain();
+        assertConsistent();
+    }
+
+    @Test
+    public void randomGestureSequences() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            final int action = sActions[random.nextInt(sActions.length)];
+            switch (random.nextInt(6)) {
+                case 0:
+                    onGestureDown(action);
+                    if (mGestureQueued) {
+                        abandon();
+                    } else {
+                        dispatch(action);
+                    }
+                    break;
+                case 1:
+                    onGestureDown(action);
+                    if (mGestureQueued) {
+                        abandon();
+                    } else {
+                        dispatchAfterProximityCheck(action, random.nextBoolean());
+                    }
+                    break;
+                case 2:
+                    onGestureDown(action);
+                    abandon();
+                    break;
+                case 3:
+                    // DOWN whose UP never arrives
+                    onGestureDown(action);
+                    break;
+                case 4:
+                    mDisplay.interactive = random.nextBoolean();
+                    break;
+                default:
+                    mHandler.advance(random.nextInt(1500));
+                    break;
+            }
+            assertConsistent();
+        }
+        drain();
+        assertConsistent();
+    }
+
+    @Test
+    public void concurrentAcquireAndRelease() throws InterruptedException {
+        // Never times out, so only GestureWakeLock decides when the lock is dropped
+        final FakeLock lock = new FakeLock(() -> 0);
+        final GestureWakeLock wakeLock = new GestureWakeLock(lock, System::nanoTime);
+        final int rounds = 200000;
+        final AtomicInteger done = new AtomicInteger();
+
+        final Thread input = new Thread(() -> {
+            for (int i = 0; i < rounds; i++) {
+                wakeLock.acquire(EVENT_TIMEOUT_MS);
+            }
+            done.incrementAndGet();
+        });
+        final Thread handler = new Thread(() -> {
+            for (int i = 0; i < rounds; i++) {
+                final int action = sActions[i % sActions.length];
+                if ((i & 1) == 0) {
+                    wakeLock.onActionStart(action);
+                    wakeLock.onActionComplete(action);
+                } else {
+                    wakeLock.release();
+                }
+            }
+            done.incrementAndGet();
+        });
+        input.start();
+        handler.start();
+        input.join();
+        handler.join();
+        assertEquals(2, done.get());
+
+        wakeLock.release();
+        assertFalse(lock.isHeld());
+        assertEquals("released while not held", 0, lock.badReleases);
+        assertEquals("acquired without a bounded timeout", 0, lock.badTimeouts);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.lineageos.settings.doze;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+
+/**
+ * The thread doing every sensor register and unregister call of the doze service.
+ * It lives exactly as long as the service: started in onCreate, quit in onDestroy
+ * once the queued operations ran.
+ *
+ * Operations are keyed by name and bring their target to whatever state is wanted
+ * when they run, not when they were scheduled. An operation scheduled while another
+ * with the same name is still queued is therefore covered by that one and dropped,
+ * which folds a quick enable/disable pair into a single call, or none at all.
+ *
+ * Kept identical to the copy in RogParts: the two apps share no library.
+ */
+class DozeControlThread {
+
+    private static final String TAG = "DozeControlThread";
+
+    private static final class OpStats {
+        long runs;
+        long coalesced;
+        long totalMs;
+        long maxMs;
+    }
+
+    private final HandlerThread mThread = new HandlerThread(TAG);
+    private Handler mHandler;
+
+    // Name -> uptime it was first scheduled at, guarded by itself
+    private final ArrayMap<String, Long> mPending = new ArrayMap<>();
+    private int mMaxQueueDepth;
+
+    // Control thread only
+    private final ArrayMap<String, OpStats> mStats = new ArrayMap<>();
+
+    void start() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /** Runs what is queued and stops the thread. */
+    void quit() {
+        mThread.quitSafely();
+    }
+
+    void schedule(String name, Runnable op) {
+        final long scheduledMs = SystemClock.uptimeMillis();
+        synchronized (mPending) {
+            if (mPending.containsKey(name)) {
+                mHandler.post(() -> getStats(name).coalesced++);
+                return;
+            }
+            mPending.put(name, scheduledMs);
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mPending.size());
+        }
+        mHandler.post(() -> run(name, op));
+    }
+
+    int getQueueDepth() {
+        synchronized (mPending) {
+            return mPending.size();
+        }
+    }
+
+    private void run(String name, Runnable op) {
+        final long scheduledMs;
+        synchronized (mPending) {
+            // Anything scheduled from here on needs another run
+            scheduledMs = mPending.remove(name);
+        }
+        op.run();
+        final long latencyMs = SystemClock.uptimeMillis() - scheduledMs;
+        final OpStats stats = getStats(name);
+        stats.runs++;
+        stats.totalMs += latencyMs;
+        stats.maxMs = Math.max(stats.maxMs, latencyMs);
+    }
+
+    private OpStats getStats(String name) {
+        OpStats stats = mStats.get(name);
+        if (stats == null) {
+            stats = new OpStats();
+            mStats.put(name, stats);
+        }
+        return stats;
+    }
+
+    void dump(PrintWriter pw) {
+        final int maxQueueDepth;
+        synchronized (mPending) {
+            maxQueueDepth = mMaxQueueDepth;
+        }
+        pw.println("Doze control thread:");
+        pw.println("  queue depth=" + getQueueDepth() + " max=" + maxQueueDepth);
+        if (!mThread.isAlive()) {
+            // Not started yet or already quit; the stats can't be read safely
+            pw.println("  not running");
+            return;
+        }
+        final boolean dumped = mHandler.runWithScissors(() -> {
+            for (int i = 0; i < mStats.size(); i++) {
+                final OpStats stats = mStats.valueAt(i);
+                pw.println("  " + mStats.keyAt(i) + ": runs=" + stats.runs
+                        + " coalesced=" + stats.coalesced
+                        + " avg latency=" + (stats.runs > 0 ? stats.totalMs / stats.runs : 0)
+                        + "ms max latency=" + stats.maxMs + "ms");
+            }
+        }, 1000);
+        if (!dumped) {
+            pw.println("  stats unavailable");
+        }
+    }
+}
@@ -25,18 +25,27 @@ import android.content.IntentFilter;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Dump with: adb shell dumpsys activity service org.lineageos.settings.doze/.DozeService
+ */
 public class DozeService extends Service {
     private static final String TAG = "DozeService";
     private static final boolean DEBUG = false;
 
+    private DozeControlThread mControlThread;
     private PickupSensor mPickupSensor;
     private PocketSensor mPocketSensor;
 
     @Override
     public void onCreate() {
         if (DEBUG) Log.d(TAG, "Creating service");
-        mPickupSensor = new PickupSensor(this);
-        mPocketSensor = new PocketSensor(this);
+        mControlThread = new DozeControlThread();
+        mControlThread.start();
+        mPickupSensor = new PickupSensor(this, mControlThread);
+        mPocketSensor = new PocketSensor(this, mControlThread);
 
         IntentFilter screenStateFilter = new IntentFilter();
         screenStateFilter.addAction(Intent.ACTION_SCREEN_ON);
@@ -57,6 +66,7 @@ public class DozeService extends Service {
         this.unregisterReceiver(mScreenStateReceiver);
         mPickupSensor.disable();
         mPocketSensor.disable();
+        mControlThread.quit();
     }
 
     @Override
@@ -64,6 +74,11 @@ public class DozeService extends Service {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        mControlThread.dump(pw);
+    }
+
     private void onDisplayOn() {
         if (DEBUG) Log.d(TAG, "Display on");
         if (Utils.isPickUpEnabled(this)) {
@@ -25,10 +25,6 @@ import android.hardware.SensorManager;
 import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-
 public class PocketSensor implements SensorEventListener {
 
     private static final boolean DEBUG = false;
@@ -39,19 +35,19 @@ public class PocketSensor implements SensorEventListener {
     private SensorManager mSensorManager;
     private Sensor mSensor;
     private Context mContext;
-    private ExecutorService mExecutorService;
+    private DozeControlThread mControlThread;
+
+    private volatile boolean mEnabled;
+    // Control thread only
+    private boolean mRegistered;
 
     private long mEntryTimestamp;
 
-    public PocketSensor(Context context) {
+    public PocketSensor(Context context, DozeControlThread controlThread) {
         mContext = context;
         mSensorManager = mContext.getSystemService(SensorManager.class);
         mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
-        mExecutorService = Executors.newSingleThreadExecutor();
-    }
-
-    private Future<?> submit(Runnable runnable) {
-        return mExecutorService.submit(runnable);
+        mControlThread = controlThread;
     }
 
     @Override
@@ -77,17 +73,27 @@ public class PocketSensor implements SensorEventListener {
 
     protected void enable() {
         if (DEBUG) Log.d(TAG, "Enabling");
-        submit(() -> {
-            mEntryTimestamp = SystemClock.elapsedRealtime();
-            mSensorManager.registerListener(this, mSensor,
-                    SensorManager.SENSOR_DELAY_NORMAL);
-        });
+        mEntryTimestamp = SystemClock.elapsedRealtime();
+        mEnabled = true;
+        mControlThread.schedule(TAG, mUpdateRegistration);
     }
 
     protected void disable() {
         if (DEBUG) Log.d(TAG, "Disabling");
-        submit(() -> {
-            mSensorManager.unregisterListener(this, mSensor);
-        });
+        mEnabled = false;
+        mControlThread.schedule(TAG, mUpdateRegistration);
     }
+
+    private final Runnable mUpdateRegistration = () -> {
+        if (mEnabled == mRegistered) {
+            return;
+        }
+        mRegistered = mEnabled;
+        if (mRegistered) {
+            mSensorManager.registerListener(this, mSensor,
+                    SensorManager.SENSOR_DELAY_NORMAL);
+        } else {
+            mSensorManager.unregisterListener(this, mSensor);
+        }
+    };
 }
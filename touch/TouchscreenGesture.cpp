@@ -18,9 +18,13 @@
 
 #include "TouchscreenGesture.h"
 
+#include <android-base/logging.h>
+
 #include <bitset>
+#include <cstdlib>
 #include <fstream>
 #include <map>
+#include <string>
 #include <type_traits>
 #include <vector>
 
@@ -73,22 +77,68 @@ Return<void> TouchscreenGesture::getSupportedGestures(getSupportedGestures_cb re
 
 Return<bool> TouchscreenGesture::setGestureEnabled(
     const ::vendor::lineage::touch::V1_0::Gesture& gesture, bool enabled) {
-    uint8_t gestureMode;
-    uint8_t mask = kGestureMasks[gesture.id];
-    std::fstream file(kGesturePath);
-    file >> gestureMode;
+    std::lock_guard<std::mutex> lock(mLock);
 
+    // Anything not in the gesture table is rejected
+    if (kGestureInfoMap.find(gesture.id) == kGestureInfoMap.end() ||
+        static_cast<size_t>(gesture.id) >= kGestureMasks.size()) {
+        LOG(WARNING) << "Unknown gesture id " << gesture.id;
+        return false;
+    }
+
+    if (!mGestureModeValid) {
+        // Start from all disabled, the driver default, if the state can't be read back
+        readGestureModeLocked();
+    }
+
+    uint8_t gestureMode = mGestureMode;
+    uint8_t mask = kGestureMasks[gesture.id];
     if (enabled)
         gestureMode |= mask;
     else
         gestureMode &= ~mask;
 
+    return writeGestureModeLocked(gestureMode);
+}
+
+bool TouchscreenGesture::readGestureModeLocked() {
+    std::ifstream file(kGesturePath);
+    std::string value;
+    file >> value;
+    if (file.fail()) {
+        return false;
+    }
+
+    char* end;
+    unsigned long parsed = strtoul(value.c_str(), &end, 2);
+    if (end == value.c_str() || *end != '\0') {
+        return false;
+    }
+
+    mGestureMode = parsed & ~kKeyMaskGestureControl;
+    mGestureModeValid = true;
+    return true;
+}
+
+bool TouchscreenGesture::writeGestureModeLocked(uint8_t mode) {
+    if (mGestureModeValid && mode == mGestureMode) {
+        return true;
+    }
+
+    uint8_t gestureMode = mode;
     if (gestureMode != 0) gestureMode |= kKeyMaskGestureControl;
 
+    std::ofstream file(kGesturePath);
     // Strip first digit
     file << encode_binary(gestureMode).substr(1);
+    if (file.fail()) {
+        mGestureModeValid = false;
+        return false;
+    }
 
-    return !file.fail();
+    mGestureMode = mode;
+    mGestureModeValid = true;
+    return true;
 }
 
 }  // namespace implementation
@@ -19,6 +19,7 @@
 #include <vendor/lineage/touch/1.0/ITouchscreenGesture.h>
 
 #include <map>
+#include <mutex>
 
 namespace vendor {
 namespace lineage {
@@ -37,11 +38,19 @@ class TouchscreenGesture : public ITouchscreenGesture {
                                    bool enabled) override;
 
   private:
+    bool readGestureModeLocked();
+    bool writeGestureModeLocked(uint8_t mode);
+
     typedef struct {
         int32_t keycode;
         const char* name;
     } GestureInfo;
     static const std::map<int32_t, GestureInfo> kGestureInfoMap;  // id -> info
+
+    std::mutex mLock;
+    // Last mode written to the driver, without the control bit
+    uint8_t mGestureMode = 0;
+    bool mGestureModeValid = false;
 };
 
 }  // namespace implementation